@@ -0,0 +1,116 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+
+/**
+ * Operations of a {@link ClipboardEntry} on data sets of different sizes.
+ * <p>
+ * The clipboard under test always contains all objects of the data set, the operations
+ * that take a selection use the first half of the shuffled objects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xmx4g", "-Djava.awt.headless=true"})
+public class ClipboardEntryBenchmark {
+  @Param({"1000", "10000", "100000", "1000000"})
+  public int size;
+  
+  private DataSet ds;
+  private List<OsmPrimitive> primitives;
+  private List<OsmPrimitive> half;
+  private ClipboardEntry entry;
+  private int next;
+  
+  @Setup
+  public void setUp() {
+    ds = SyntheticData.createDataSet(size);
+    primitives = SyntheticData.shuffled(ds);
+    half = primitives.subList(0, primitives.size() / 2);
+    entry = new ClipboardEntry("benchmark", primitives);
+  }
+  
+  @Benchmark
+  public ClipboardEntry addAll() {
+    final ClipboardEntry result = new ClipboardEntry("benchmark");
+    result.addAll(primitives);
+    
+    return result;
+  }
+  
+  /**
+   * Includes copying the ids that the new clipboard shares with the one under test.
+   */
+  @Benchmark
+  public ClipboardEntry remove() {
+    final ClipboardEntry result = new ClipboardEntry("benchmark", entry.getStore().view(false));
+    result.remove(half);
+    
+    return result;
+  }
+  
+  /**
+   * Checks a selection of half the clipboard, as done for the members of the selection.
+   */
+  @Benchmark
+  public boolean containsAll() {
+    for(OsmPrimitive p : half) {
+      if(!entry.containsPrimitive(p)) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  @Benchmark
+  public boolean contains() {
+    next = (next + 7919) % primitives.size();
+    
+    return entry.containsPrimitive(primitives.get(next));
+  }
+  
+  @Benchmark
+  public ClipboardEntry reverse() {
+    entry.reverse();
+    
+    return entry;
+  }
+  
+  /**
+   * The resolving and selection change of {@link ClipboardEntry#restore()}, which itself
+   * hands large clipboards over to a background task.
+   */
+  @Benchmark
+  public void restore(Blackhole blackhole) {
+    final List<OsmPrimitive> resolved = entry.getStore().resolve(ds, ClipboardEntry.ALL);
+    ds.setSelected(resolved);
+    blackhole.consume(resolved);
+  }
+  
+  @Benchmark
+  public String refreshName() {
+    entry.refreshName();
+    
+    return entry.toString();
+  }
+}
@@ -0,0 +1,65 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Event queue that sums up the time and the allocated memory of all events dispatched
+ * on the event dispatch thread, including the ones posted by listeners.
+ */
+final class EdtMonitor extends EventQueue {
+  private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+  
+  private int depth;
+  private volatile long nanos;
+  private volatile long allocatedBytes;
+  
+  void install() {
+    threads.setThreadAllocatedMemoryEnabled(true);
+    Toolkit.getDefaultToolkit().getSystemEventQueue().push(this);
+  }
+  
+  @Override
+  protected void dispatchEvent(AWTEvent event) {
+    if(depth++ > 0) {
+      // nested dispatch loop, already measured by the outer event
+      try {
+        super.dispatchEvent(event);
+      } finally {
+        depth--;
+      }
+      
+      return;
+    }
+    
+    final long thread = Thread.currentThread().getId();
+    final long bytes = threads.getThreadAllocatedBytes(thread);
+    final long start = System.nanoTime();
+    
+    try {
+      super.dispatchEvent(event);
+    } finally {
+      nanos += System.nanoTime() - start;
+      allocatedBytes += threads.getThreadAllocatedBytes(thread) - bytes;
+      depth--;
+    }
+  }
+  
+  void reset() {
+    nanos = 0;
+    allocatedBytes = 0;
+  }
+  
+  long getNanos() {
+    return nanos;
+  }
+  
+  long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+}
@@ -0,0 +1,83 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import java.awt.BorderLayout;
+import java.lang.reflect.Field;
+
+import javax.swing.JPanel;
+
+import org.openstreetmap.josm.data.Preferences;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MainMenu;
+import org.openstreetmap.josm.gui.MainPanel;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.gui.preferences.ToolbarPreferences;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * The minimal JOSM environment the benchmarks need without a GUI: in memory
+ * preferences, a projection and optionally an active data layer and the parts of the
+ * main window that toggle dialogs register with.
+ */
+public final class HeadlessJosm {
+  private static boolean initialized;
+  private static boolean guiInitialized;
+  
+  private HeadlessJosm() {
+    // Hide default constructor for utilities classes
+  }
+  
+  public static synchronized void initialize() {
+    if(!initialized) {
+      final Preferences pref = Preferences.main();
+      pref.enableSaveOnPut(false);
+      Config.setPreferencesInstance(pref);
+      ProjectionRegistry.setProjection(Projections.getProjectionByCode("EPSG:3857"));
+      initialized = true;
+    }
+  }
+  
+  /**
+   * Creates the content pane, main panel, toolbar and main menu the way the GUI tests
+   * of JOSM do. Plugins have no access to these fields, so they are set by reflection.
+   * Has to be called on the event dispatch thread.
+   */
+  public static synchronized void initializeGui() {
+    initialize();
+    
+    if(!guiInitialized) {
+      try {
+        set("contentPanePrivate", new JPanel(new BorderLayout()));
+        set("mainPanel", new MainPanel(MainApplication.getLayerManager()));
+        set("toolbar", new ToolbarPreferences());
+        set("menu", new MainMenu());
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException("Unsupported JOSM version", e);
+      }
+      
+      guiInitialized = true;
+    }
+  }
+  
+  private static void set(String name, Object value) throws ReflectiveOperationException {
+    final Field field = MainApplication.class.getDeclaredField(name);
+    field.setAccessible(true);
+    field.set(null, value);
+  }
+  
+  /**
+   * Adds the data set as the active layer.
+   */
+  public static OsmDataLayer activate(DataSet ds) {
+    initialize();
+    
+    final OsmDataLayer layer = new OsmDataLayer(ds, "benchmark", null);
+    MainApplication.getLayerManager().addLayer(layer);
+    MainApplication.getLayerManager().setActiveLayer(layer);
+    
+    return layer;
+  }
+}
@@ -0,0 +1,348 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.EventQueue;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.swing.DefaultListModel;
+
+import org.openstreetmap.josm.data.UndoRedoHandler;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.io.IllegalDataException;
+import org.openstreetmap.josm.io.OsmReader;
+import org.openstreetmap.josm.io.OsmWriter;
+import org.openstreetmap.josm.io.OsmWriterFactory;
+import org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist.NodeTemplateList;
+import org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist.NodeTemplateListDialog;
+import org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist.TemplateSession;
+
+/**
+ * Replays a scripted session against both dialogs of the plugin in a headless JOSM and
+ * checks the time and the memory allocated on the event dispatch thread per operation
+ * against budgets.
+ * <p>
+ * Arguments: session file, budget file and the directory of the generated .osm
+ * fixtures. The process exits with 1 if a budget is exceeded and with 2 if the session
+ * can't be run.
+ * <p>
+ * A session has one command with a number per line, {@code #} starts a comment:
+ * <ul>
+ * <li>{@code data} - objects of the synthetic data set, before the first operation</li>
+ * <li>{@code templates} - number of node templates, before the first operation</li>
+ * <li>{@code warmup}, {@code repeat} - unmeasured and measured runs of the following operations</li>
+ * <li>{@code select} - selects that many objects</li>
+ * <li>{@code tag} - tags that many selected objects with the next node template</li>
+ * <li>{@code restore} - restores a clipboard with that many objects</li>
+ * <li>{@code resize} - changes the height of the node template dialog by that many pixels</li>
+ * </ul>
+ * The budgets are properties {@code <operation>.<number>.ms} or {@code <operation>.ms}
+ * for the 90th percentile of the time in milliseconds and the same with {@code .mb}
+ * for the allocated megabytes.
+ */
+public final class PerfHarness {
+  private static final int WIDTH = 300;
+  private static final int HEIGHT = 400;
+  
+  private final Properties budgets;
+  private final File fixtures;
+  private final EdtMonitor monitor = new EdtMonitor();
+  
+  private int size = 10_000;
+  private int templateCount = 100;
+  private int warmup = 3;
+  private int repeat = 10;
+  
+  private DataSet ds;
+  private List<OsmPrimitive> primitives;
+  private TemplateSession templates;
+  private NodeTemplateListDialog templateDialog;
+  private ExtendedClipboardDialog clipboardDialog;
+  private int next;
+  private boolean exceeded;
+  
+  private PerfHarness(Properties budgets, File fixtures) {
+    this.budgets = budgets;
+    this.fixtures = fixtures;
+  }
+  
+  public static void main(String[] args) {
+    int status = 2;
+    
+    if(args.length != 3) {
+      System.err.println("Usage: PerfHarness <session> <budgets> <fixture directory>");
+    }
+    else {
+      try(Reader in = Files.newBufferedReader(new File(args[1]).toPath(), StandardCharsets.UTF_8)) {
+        final Properties budgets = new Properties();
+        budgets.load(in);
+        
+        final PerfHarness harness = new PerfHarness(budgets, new File(args[2]));
+        harness.run(Files.readAllLines(new File(args[0]).toPath(), StandardCharsets.UTF_8));
+        status = harness.exceeded ? 1 : 0;
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+    
+    System.exit(status);
+  }
+  
+  private void run(List<String> lines) throws Exception {
+    System.out.println(String.format("%-20s %10s %10s %10s  %s", "operation", "median ms", "p90 ms", "p90 MB", "budget"));
+    
+    for(String line : lines) {
+      final String[] command = line.replaceFirst("#.*", "").trim().split("\\s+");
+      
+      if(command[0].isEmpty()) {
+        continue;
+      }
+      
+      if(command.length != 2) {
+        throw new IllegalArgumentException("Invalid line: " + line);
+      }
+      
+      final int number = Integer.parseInt(command[1]);
+      
+      switch(command[0]) {
+        case "data":
+          checkNotSetUp(line);
+          size = number;
+          break;
+        case "templates":
+          checkNotSetUp(line);
+          templateCount = number;
+          break;
+        case "warmup":
+          warmup = number;
+          break;
+        case "repeat":
+          repeat = number;
+          break;
+        default:
+          setUp();
+          measure(command[0], number);
+      }
+    }
+  }
+  
+  private void checkNotSetUp(String line) {
+    if(ds != null) {
+      throw new IllegalArgumentException("Has to precede the operations: " + line);
+    }
+  }
+  
+  private void setUp() throws Exception {
+    if(ds == null) {
+      HeadlessJosm.initialize();
+      monitor.install();
+      
+      ds = loadFixture(size);
+      primitives = SyntheticData.shuffled(ds);
+      templates = new TemplateSession(templateCount);
+      
+      EventQueue.invokeAndWait(() -> {
+        HeadlessJosm.initializeGui();
+        SelectionSummary.initialize();
+        ClipboardRegistry.initialize();
+        
+        templateDialog = new NodeTemplateListDialog();
+        NodeTemplateList.get().setDialog(templateDialog);
+        clipboardDialog = new ExtendedClipboardDialog();
+        templateDialog.showNotify();
+        clipboardDialog.showNotify();
+        
+        HeadlessJosm.activate(ds);
+        templateDialog.setSize(WIDTH, HEIGHT);
+        layout(templateDialog);
+      });
+      settle();
+    }
+  }
+  
+  /**
+   * Loads the synthetic data set from its .osm file, which is written first if it
+   * doesn't exist yet.
+   */
+  private DataSet loadFixture(int size) throws IOException, IllegalDataException {
+    final File file = new File(fixtures, "synthetic-" + size + ".osm");
+    
+    if(!file.exists()) {
+      fixtures.mkdirs();
+      
+      try(PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8);
+          OsmWriter writer = OsmWriterFactory.createOsmWriter(out, true, OsmWriter.DEFAULT_API_VERSION)) {
+        writer.write(SyntheticData.createDataSet(size));
+      }
+    }
+    
+    try(InputStream in = Files.newInputStream(file.toPath())) {
+      return OsmReader.parseDataSet(in, NullProgressMonitor.INSTANCE);
+    }
+  }
+  
+  /**
+   * Lays out the component tree, which needs no native peer unlike validate().
+   */
+  private static void layout(Component c) {
+    if(c instanceof Container) {
+      c.doLayout();
+      
+      for(Component child : ((Container) c).getComponents()) {
+        layout(child);
+      }
+    }
+  }
+  
+  /**
+   * @return the next {@code count} objects of the shuffled data set
+   */
+  private List<OsmPrimitive> nextObjects(int count) {
+    if(count > primitives.size()) {
+      throw new IllegalArgumentException("The data set has only " + primitives.size() + " objects");
+    }
+    
+    if(next + count > primitives.size()) {
+      next = 0;
+    }
+    
+    next += count;
+    
+    return primitives.subList(next - count, next);
+  }
+  
+  /**
+   * Waits until background tasks are done and the event queue is empty.
+   */
+  private void settle() throws Exception {
+    do {
+      MainApplication.worker.submit(() -> { }).get();
+      EventQueue.invokeAndWait(() -> { });
+    } while(monitor.peekEvent() != null);
+  }
+  
+  private void onEdt(Runnable r) throws Exception {
+    EventQueue.invokeAndWait(r);
+    settle();
+  }
+  
+  private void measure(String name, int number) throws Exception {
+    final Runnable prepare;
+    final Runnable operation;
+    final Runnable cleanUp;
+    
+    switch(name) {
+      case "select":
+        prepare = ds::clearSelection;
+        operation = () -> ds.setSelected(nextObjects(number));
+        cleanUp = () -> { };
+        break;
+      case "tag": {
+        final int[] commands = new int[1];
+        prepare = () -> {
+          ds.setSelected(nextObjects(number));
+          commands[0] = UndoRedoHandler.getInstance().getUndoCommands().size();
+        };
+        operation = () -> templates.tag(templateDialog, ds.getSelected());
+        cleanUp = () -> {
+          if(UndoRedoHandler.getInstance().getUndoCommands().size() > commands[0]) {
+            UndoRedoHandler.getInstance().undo();
+          }
+        };
+        break;
+      }
+      case "restore": {
+        if(number >= ClipboardEntry.BACKGROUND_SIZE) {
+          throw new IllegalArgumentException("Clipboards of " + ClipboardEntry.BACKGROUND_SIZE + " or more objects are restored in the background");
+        }
+        
+        final ClipboardEntry entry = new ClipboardEntry("restore " + number, nextObjects(number));
+        onEdt(() -> ClipboardRegistry.get().get(MainApplication.getLayerManager().getActiveDataLayer(), DefaultListModel::new).addElement(entry));
+        prepare = ds::clearSelection;
+        operation = entry::restore;
+        cleanUp = () -> { };
+        break;
+      }
+      case "resize": {
+        final int[] run = new int[1];
+        prepare = () -> { };
+        operation = () -> {
+          templateDialog.setSize(WIDTH, HEIGHT + (run[0]++ % 2 == 0 ? number : 0));
+          layout(templateDialog);
+        };
+        cleanUp = () -> { };
+        break;
+      }
+      default:
+        throw new IllegalArgumentException("Unknown operation: " + name);
+    }
+    
+    final long[] nanos = new long[repeat];
+    final long[] bytes = new long[repeat];
+    
+    for(int i = -warmup; i < repeat; i++) {
+      onEdt(prepare);
+      monitor.reset();
+      onEdt(operation);
+      
+      if(i >= 0) {
+        nanos[i] = monitor.getNanos();
+        bytes[i] = monitor.getAllocatedBytes();
+      }
+      
+      onEdt(cleanUp);
+    }
+    
+    report(name, number, nanos, bytes);
+  }
+  
+  private static double percentile(long[] values, int percent) {
+    final long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    
+    return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+  }
+  
+  private String getBudget(String name, int number, String unit) {
+    return budgets.getProperty(name + "." + number + "." + unit, budgets.getProperty(name + "." + unit));
+  }
+  
+  private void report(String name, int number, long[] nanos, long[] bytes) {
+    final double median = percentile(nanos, 50) / 1e6;
+    final double millis = percentile(nanos, 90) / 1e6;
+    final double megabytes = percentile(bytes, 90) / (1024.0 * 1024.0);
+    final String maxMillis = getBudget(name, number, "ms");
+    final String maxMegabytes = getBudget(name, number, "mb");
+    final StringBuilder result = new StringBuilder();
+    
+    if(maxMillis != null && millis > Double.parseDouble(maxMillis)) {
+      result.append("time exceeds ").append(maxMillis).append(" ms ");
+    }
+    
+    if(maxMegabytes != null && megabytes > Double.parseDouble(maxMegabytes)) {
+      result.append("allocation exceeds ").append(maxMegabytes).append(" MB ");
+    }
+    
+    if(result.length() > 0) {
+      exceeded = true;
+    }
+    else {
+      result.append(maxMillis == null && maxMegabytes == null ? "none" : "ok");
+    }
+    
+    System.out.println(String.format("%-20s %10.2f %10.2f %10.2f  %s", name + " " + number, median, millis, megabytes, result.toString().trim()));
+  }
+}
@@ -0,0 +1,89 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.plugins.extendedclipboard.HeadlessJosm;
+
+/**
+ * Matching of all templates against one object, as done for each object when the
+ * selection or the templates change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class NodeTemplateBenchmark {
+  private static final int OBJECTS = 1000;
+  
+  @Param({"10", "100", "2000"})
+  public int templateCount;
+  
+  @Param({"1", "5", "20"})
+  public int tagCount;
+  
+  private List<NodeTemplate> templates;
+  private List<OsmPrimitive> primitives;
+  private int next;
+  
+  @Setup
+  public void setUp() {
+    HeadlessJosm.initialize();
+    templates = TemplateData.createTemplates(templateCount, tagCount);
+    primitives = TemplateData.createPrimitives(new DataSet(), templates, OBJECTS);
+    
+    for(NodeTemplate t : templates) {
+      t.getMatcher();
+    }
+  }
+  
+  private OsmPrimitive nextPrimitive() {
+    next = (next + 1) % primitives.size();
+    
+    return primitives.get(next);
+  }
+  
+  @Benchmark
+  public int isCompatible() {
+    final OsmPrimitive p = nextPrimitive();
+    int count = 0;
+    
+    for(NodeTemplate t : templates) {
+      if(t.isCompatible(p)) {
+        count++;
+      }
+    }
+    
+    return count;
+  }
+  
+  @Benchmark
+  public int onlyMatchingTags() {
+    final OsmPrimitive p = nextPrimitive();
+    int count = 0;
+    
+    for(NodeTemplate t : templates) {
+      if(t.getMatcher().onlyMatchingTags(p)) {
+        count++;
+      }
+    }
+    
+    return count;
+  }
+}
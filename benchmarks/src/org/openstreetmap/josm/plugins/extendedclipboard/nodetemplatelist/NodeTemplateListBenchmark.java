@@ -0,0 +1,82 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.plugins.extendedclipboard.HeadlessJosm;
+import org.openstreetmap.josm.plugins.extendedclipboard.SelectionSummary;
+
+/**
+ * Updating the enabled state of the quick access menu for selections of different
+ * sizes, once after a single object was added to or removed from the selection and
+ * once after a change of the templates that needs a full recount.
+ * <p>
+ * The templates have no icons, so no menu items are created and the benchmark
+ * measures which templates apply to the selection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xmx2g", "-Djava.awt.headless=true"})
+public class NodeTemplateListBenchmark {
+  @Param({"10", "100", "2000"})
+  public int templateCount;
+  
+  @Param({"1", "1000", "100000"})
+  public int selectionSize;
+  
+  private DataSet ds;
+  private NodeTemplateList list;
+  private OsmPrimitive toggled;
+  
+  @Setup
+  public void setUp() {
+    final List<NodeTemplate> templates = TemplateData.createTemplates(templateCount, 5);
+    
+    ds = new DataSet();
+    final List<OsmPrimitive> primitives = TemplateData.createPrimitives(ds, templates, selectionSize + 1);
+    HeadlessJosm.activate(ds);
+    
+    NodeTemplateList.initialize();
+    list = NodeTemplateList.get();
+    list.setList(templates);
+    
+    ds.setSelected(primitives.subList(0, selectionSize));
+    toggled = primitives.get(selectionSize);
+    list.updateQuickMenuItemsEnabledState();
+  }
+  
+  @Benchmark
+  public void afterSelectionChange() {
+    if(toggled.isSelected()) {
+      ds.clearSelection(toggled);
+    }
+    else {
+      ds.addSelected(toggled);
+    }
+    
+    list.updateQuickMenuItemsEnabledState();
+  }
+  
+  @Benchmark
+  public void afterRecount() {
+    SelectionSummary.get().invalidate();
+    list.updateQuickMenuItemsEnabledState();
+  }
+}
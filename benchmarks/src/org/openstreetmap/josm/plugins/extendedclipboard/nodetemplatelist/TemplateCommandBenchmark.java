@@ -0,0 +1,73 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.plugins.extendedclipboard.HeadlessJosm;
+
+/**
+ * Creation of the tag change commands and new nodes of a template with and without
+ * ctrl and shift, the way the dialog and the quick access menu use them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class TemplateCommandBenchmark {
+  private static final int TEMPLATES = 100;
+  private static final int OBJECTS = 1000;
+  
+  @Param({"1", "5", "20"})
+  public int tagCount;
+  
+  @Param({"NONE", "CTRL", "SHIFT", "CTRL_SHIFT"})
+  public String modifiers;
+  
+  private boolean ctrl;
+  private boolean shift;
+  private List<NodeTemplate> templates;
+  private List<OsmPrimitive> primitives;
+  private int next;
+  
+  @Setup
+  public void setUp() {
+    HeadlessJosm.initialize();
+    ctrl = modifiers.startsWith("CTRL");
+    shift = modifiers.endsWith("SHIFT");
+    templates = TemplateData.createTemplates(TEMPLATES, tagCount);
+    primitives = TemplateData.createPrimitives(new DataSet(), templates, OBJECTS);
+  }
+  
+  @Benchmark
+  public List<Command> createChangeCommand() {
+    next = (next + 1) % primitives.size();
+    
+    return templates.get(next % templates.size()).createChangeCommand(primitives.get(next), ctrl, shift, new AtomicBoolean(), false);
+  }
+  
+  @Benchmark
+  public Node createNode() {
+    next = (next + 1) % templates.size();
+    
+    return templates.get(next).createNode(ctrl, shift);
+  }
+}
@@ -0,0 +1,119 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.extendedclipboard.SyntheticData;
+
+/**
+ * Reproducible node templates and tagged objects for the benchmarks.
+ * <p>
+ * Template tags are drawn from a small vocabulary and the objects copy the tags of a
+ * random template, partly with its ctrl or shift tags or an additional tag, so the
+ * matching is exercised with hits and misses.
+ */
+final class TemplateData {
+  private static final int KEYS = 60;
+  private static final int VALUES = 4;
+  
+  private TemplateData() {
+    // Hide default constructor for utilities classes
+  }
+  
+  private static String key(Random random) {
+    return "key" + random.nextInt(KEYS);
+  }
+  
+  private static String value(Random random) {
+    return "value" + random.nextInt(VALUES);
+  }
+  
+  private static Map<String, String> tags(Random random, int count) {
+    final Map<String, String> tags = new LinkedHashMap<>();
+    
+    while(tags.size() < count) {
+      tags.put(key(random), value(random));
+    }
+    
+    return tags;
+  }
+  
+  static List<NodeTemplate> createTemplates(int count, int tagCount) {
+    final Random random = new Random(SyntheticData.SEED);
+    final List<NodeTemplate> templates = new ArrayList<>(count);
+    
+    for(int i = 0; i < count; i++) {
+      final int kind = random.nextInt(10);
+      final NodeTemplate t = new NodeTemplate("template" + i, "Template " + i, null, tags(random, tagCount),
+          kind >= 6, kind == 9, kind == 8, random.nextInt(10) < 3);
+      t.setCtrl(tags(random, 1));
+      t.setShift(tags(random, 1));
+      templates.add(t);
+    }
+    
+    return templates;
+  }
+  
+  /**
+   * Creates tagged nodes and ways in the given data set.
+   */
+  static List<OsmPrimitive> createPrimitives(DataSet ds, List<NodeTemplate> templates, int count) {
+    final Random random = new Random(SyntheticData.SEED + 1);
+    final List<OsmPrimitive> primitives = new ArrayList<>(count);
+    final List<Node> nodes = new ArrayList<>();
+    long id = 1;
+    
+    for(int i = 0; i < count; i++) {
+      final NodeTemplate t = templates.get(random.nextInt(templates.size()));
+      final OsmPrimitive p;
+      
+      if(i % 5 == 4 && nodes.size() >= 4) {
+        final Way w = new Way(id++, 1);
+        final List<Node> wayNodes = new ArrayList<>(nodes.subList(nodes.size() - 4, nodes.size()));
+        
+        if(random.nextBoolean()) {
+          wayNodes.add(wayNodes.get(0));
+        }
+        
+        w.setNodes(wayNodes);
+        p = w;
+      }
+      else {
+        final Node n = new Node(id++, 1);
+        n.setCoor(new LatLon(50 + random.nextDouble(), 8 + random.nextDouble()));
+        nodes.add(n);
+        p = n;
+      }
+      
+      final int variant = random.nextInt(5);
+      
+      if(variant > 0) {
+        p.putAll(t.getMap());
+        
+        if(variant == 2) {
+          p.putAll(t.getCtrl());
+        }
+        else if(variant == 3) {
+          p.putAll(t.getShift());
+        }
+        else if(variant == 4) {
+          p.put("note", "benchmark");
+        }
+      }
+      
+      ds.addPrimitive(p);
+      primitives.add(p);
+    }
+    
+    return primitives;
+  }
+}
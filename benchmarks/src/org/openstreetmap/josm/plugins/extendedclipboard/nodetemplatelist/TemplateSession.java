@@ -0,0 +1,36 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+
+/**
+ * Node templates for the performance harness and access to the tagging of the dialog.
+ */
+public final class TemplateSession {
+  private final List<NodeTemplate> templates;
+  private int next;
+  
+  /**
+   * Replaces the templates of the node template list with the given number of
+   * synthetic ones, has to be called before the dialog is created.
+   */
+  public TemplateSession(int count) {
+    templates = TemplateData.createTemplates(count, 3);
+    
+    NodeTemplateList.initialize();
+    NodeTemplateList.get().setList(templates);
+  }
+  
+  /**
+   * Tags the objects with the next template, the code path that auto tagging and a
+   * click on a template share.
+   */
+  public void tag(NodeTemplateListDialog dialog, Collection<OsmPrimitive> selection) {
+    next = (next + 1) % templates.size();
+    
+    dialog.handleSelection(templates.get(next), selection, true, false, false, false);
+  }
+}
@@ -0,0 +1,276 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.lang.ref.WeakReference;
+import java.text.DateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import org.openstreetmap.josm.data.osm.BBox;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmDataManager;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+
+/**
+ * A named clipboard of the {@link ExtendedClipboardDialog}.
+ * <p>
+ * The objects are only stored by their ids and resolved against the active data set when needed.
+ */
+final class ClipboardEntry {
+  static final int ALL = -1;
+  static final int NODES = PrimitiveIdStore.NODE;
+  static final int WAYS = PrimitiveIdStore.WAY;
+  static final int RELATIONS = PrimitiveIdStore.RELATION;
+  
+  private static final DateFormat FORMAT_DATE = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM);
+  private static final String FORMAT_EXT = " ({1},{2},{3}) ({0})";
+  private static final String FORMAT_EXT_PATTERN =  FORMAT_EXT.replaceAll("\\{\\d{1}\\}", "\\\\d+").replace("(", "\\\\(").replace(")", "\\\\)");
+  private static final String REVERSE_INFO = " \u2B07";
+  static final int BACKGROUND_SIZE = 10_000;
+  
+  private final PrimitiveIdStore store;
+  
+  private String name;
+  private String nameTemplate;
+  private String baseName;
+  
+  private BBox bbox;
+  // weak, kept clipboards of removed layers must not keep their data set alive
+  private WeakReference<DataSet> bboxDataSet;
+  private int bboxModCount;
+  private int bboxGeometryVersion;
+  
+  ClipboardEntry(String name) {
+    this(name, (Collection<OsmPrimitive>)null);
+  }
+  
+  ClipboardEntry(String name, Collection<OsmPrimitive> selection) {
+    this(name, new PrimitiveIdStore());
+    
+    if(selection != null) {
+      addAll(selection);
+    }
+  }
+  
+  ClipboardEntry(String name, PrimitiveIdStore store) {
+    this.store = store;
+    
+    if(name == null) {
+      name = FORMAT_DATE.format(new Date());
+    }
+    
+    setName(name);
+  }
+  
+  public String getNameOnly() {
+    return baseName;
+  }
+  
+  @Override
+  public String toString() {
+    return name;
+  }
+  
+  PrimitiveIdStore getStore() {
+    return store;
+  }
+  
+  void restore() {
+    restore(ALL);
+  }
+  
+  /**
+   * Replaces the selection with the objects of the given type, which fires a single selection event.
+   */
+  void restore(int type) {
+    select(type, tr("Restoring selection"), DataSet::setSelected);
+  }
+  
+  void addToSelection() {
+    select(ALL, tr("Adding to selection"), DataSet::addSelected);
+  }
+  
+  void removeFromSelection() {
+    select(ALL, tr("Removing from selection"), DataSet::clearSelection);
+  }
+  
+  /**
+   * Resolves the objects and hands them to the selector. Large clipboards are resolved
+   * in a cancelable background task on a snapshot of the ids, only the selector is
+   * called in the EDT and only if the data set is still the active one.
+   */
+  private void select(int type, String title, BiConsumer<DataSet, Collection<OsmPrimitive>> selector) {
+    final DataSet ds = OsmDataManager.getInstance().getActiveDataSet();
+    
+    if(ds == null || isEmpty()) {
+      return;
+    }
+    
+    if(store.size() < BACKGROUND_SIZE) {
+      selector.accept(ds, store.resolve(ds, type));
+      return;
+    }
+    
+    final PrimitiveIdStore snapshot = store.view(false);
+    
+    MainApplication.worker.submit(new PleaseWaitRunnable(title) {
+      private List<OsmPrimitive> result;
+      
+      @Override
+      protected void realRun() {
+        ds.getReadLock().lock();
+        
+        try {
+          result = snapshot.resolve(ds, type, getProgressMonitor());
+        } finally {
+          ds.getReadLock().unlock();
+        }
+      }
+      
+      @Override
+      protected void finish() {
+        if(result != null && !getProgressMonitor().isCanceled() && ds == OsmDataManager.getInstance().getActiveDataSet()) {
+          result.removeIf(p -> p.isDeleted() || p.getDataSet() != ds);
+          selector.accept(ds, result);
+        }
+      }
+      
+      @Override
+      protected void cancel() {
+        // checked while resolving via the progress monitor
+      }
+    });
+  }
+  
+  boolean isEmpty() {
+    return store.isEmpty();
+  }
+  
+  boolean containsPrimitive(OsmPrimitive p) {
+    return store.contains(p);
+  }
+  
+  void updateReverseState() {
+    if(nameTemplate.contains(REVERSE_INFO)) {
+      nameTemplate = baseName+FORMAT_EXT;
+    }
+    else {
+      nameTemplate = baseName+FORMAT_EXT+REVERSE_INFO;
+    }
+    
+    refreshName();
+  }
+  
+  void setName(String name) {
+    if(name.matches(".*"+FORMAT_EXT_PATTERN+".*")) {
+      baseName = name.replaceAll(FORMAT_EXT_PATTERN, "");
+    }
+    else {
+      baseName = name;
+    }
+    
+    nameTemplate = baseName+FORMAT_EXT;
+    
+    if(nameTemplate.contains(REVERSE_INFO) && !nameTemplate.endsWith(REVERSE_INFO)) {
+      nameTemplate = nameTemplate.replace(REVERSE_INFO, "") + REVERSE_INFO;
+    }
+    
+    refreshName();
+  }
+  
+  void addAll(Collection<OsmPrimitive> selection) {
+    final boolean extendBBox = isBBoxValid(OsmDataManager.getInstance().getActiveDataSet());
+    
+    for(OsmPrimitive s : selection) {
+      if(store.add(s) && extendBBox) {
+        add(bbox, s);
+      }
+    }
+    
+    if(extendBBox) {
+      bboxModCount = store.getModCount();
+    }
+    
+    refreshName();
+  }
+  
+  /**
+   * Returns the bounding box of the objects in the active data set. Added objects extend
+   * it directly, after other changes of the clipboard or of the data it is recomputed
+   * when needed.
+   */
+  BBox getBBox() {
+    final DataSet ds = OsmDataManager.getInstance().getActiveDataSet();
+    
+    if(!isBBoxValid(ds)) {
+      bbox = new BBox();
+      
+      for(OsmPrimitive p : store.resolve(ds, ALL)) {
+        add(bbox, p);
+      }
+      
+      bboxDataSet = new WeakReference<>(ds);
+      bboxModCount = store.getModCount();
+      bboxGeometryVersion = ClipboardRegistry.get().getGeometryVersion();
+    }
+    
+    return bbox;
+  }
+  
+  private boolean isBBoxValid(DataSet ds) {
+    return bbox != null && ds != null && bboxDataSet.get() == ds && bboxModCount == store.getModCount()
+        && bboxGeometryVersion == ClipboardRegistry.get().getGeometryVersion();
+  }
+  
+  private static void add(BBox bbox, OsmPrimitive p) {
+    final BBox box = p.getBBox();
+    
+    if(box != null && box.isValid()) {
+      bbox.add(box);
+    }
+  }
+  
+  void remove(Collection<OsmPrimitive> selection) {
+    store.removeAll(selection);
+    refreshName();
+  }
+  
+  void reverse() {
+    store.reverse();
+  }
+  
+  boolean containsNodes() {
+    return store.count(NODES) > 0;
+  }
+  
+  boolean containsWays() {
+    return store.count(WAYS) > 0;
+  }
+  
+  boolean containsRelations() {
+    return store.count(RELATIONS) > 0;
+  }
+  
+  List<OsmPrimitive> getRelations() {
+    return store.resolve(OsmDataManager.getInstance().getActiveDataSet(), RELATIONS);
+  }
+  
+  void refreshName() {
+    name = nameTemplate.replace("{0}", String.valueOf(size())).replace("{1}", String.valueOf(store.count(NODES))).replace("{2}", String.valueOf(store.count(WAYS))).replace("{3}", String.valueOf(store.count(RELATIONS)));
+  }
+  
+  void clear() {
+    store.clear();
+    refreshName();
+  }
+  
+  int size() {
+    return store.size();
+  }
+}
@@ -0,0 +1,112 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import static org.openstreetmap.josm.tools.I18n.marktr;
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.util.BitSet;
+import java.util.List;
+
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+
+/**
+ * Set operations to combine clipboards into a new one.
+ * <p>
+ * All stores are mapped to the positions of their union, so each operation is a
+ * few passes over <code>long</code> arrays with bit sets instead of per object lookups.
+ * The result keeps the order of the first clipboard followed by the others.
+ */
+enum ClipboardOperation {
+  UNION(marktr("Union"), "\u222A"),
+  INTERSECTION(marktr("Intersection"), "\u2229"),
+  DIFFERENCE(marktr("Difference"), "\u2216"),
+  SYMMETRIC_DIFFERENCE(marktr("Symmetric difference"), "\u2206");
+  
+  private final String name;
+  private final String symbol;
+  
+  ClipboardOperation(String name, String symbol) {
+    this.name = name;
+    this.symbol = symbol;
+  }
+  
+  String getSymbol() {
+    return symbol;
+  }
+  
+  @Override
+  public String toString() {
+    return tr(name);
+  }
+  
+  /**
+   * Combines the given stores, the first one is the left operand of a difference.
+   *
+   * @return the result or <code>null</code> if canceled
+   */
+  PrimitiveIdStore apply(List<PrimitiveIdStore> stores, ProgressMonitor monitor) {
+    monitor.setTicksCount(stores.size() * 2);
+    
+    final PrimitiveIdStore union = new PrimitiveIdStore();
+    
+    for(PrimitiveIdStore store : stores) {
+      union.addAll(store);
+      monitor.worked(1);
+      
+      if(monitor.isCanceled()) {
+        return null;
+      }
+    }
+    
+    if(this == UNION) {
+      monitor.worked(stores.size());
+      return union;
+    }
+    
+    final int firstSize = stores.get(0).size();
+    final BitSet result = new BitSet(union.size());
+    
+    if(this == DIFFERENCE) {
+      result.set(0, firstSize);
+    }
+    else if(this == INTERSECTION) {
+      result.set(0, union.size());
+    }
+    
+    final BitSet contained = new BitSet(union.size());
+    
+    for(int s = 0; s < stores.size(); s++) {
+      final PrimitiveIdStore store = stores.get(s);
+      
+      if(this == INTERSECTION) {
+        contained.clear();
+      }
+      
+      for(int i = 0; i < store.size(); i++) {
+        final int index = union.indexOf(store.get(i));
+        
+        if(this == SYMMETRIC_DIFFERENCE) {
+          result.flip(index);
+        }
+        else if(this == INTERSECTION) {
+          contained.set(index);
+        }
+        else if(s > 0) {
+          result.clear(index);
+        }
+      }
+      
+      if(this == INTERSECTION) {
+        result.and(contained);
+      }
+      
+      monitor.worked(1);
+      
+      if(monitor.isCanceled()) {
+        return null;
+      }
+    }
+    
+    return union.retainAll(result);
+  }
+}
@@ -0,0 +1,276 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmDataManager;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter;
+import org.openstreetmap.josm.data.osm.event.DatasetEventManager;
+import org.openstreetmap.josm.data.osm.event.DatasetEventManager.FireMode;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.gui.layer.MapViewPaintable;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Paints the objects of a hovered clipboard on top of the map without touching the data set.
+ * <p>
+ * The geometry is collected once in east/north coordinates in a background thread and
+ * only transformed to the screen when painting. It is kept until the clipboard or the data
+ * changes, a newer request cancels an older one and repaints are limited to one per frame.
+ */
+final class ClipboardPreview implements MapViewPaintable, DataSetListenerAdapter.Listener {
+  private static final Color COLOR = new Color(255, 140, 0, 180);
+  private static final int NODE_SIZE = 6;
+  private static final int FRAME_MILLIS = 16;
+  
+  private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(Utils.newThreadFactory("extendedclipboard-preview-%d", Thread.NORM_PRIORITY));
+  
+  private final AtomicInteger generation = new AtomicInteger();
+  private final DataSetListenerAdapter dataSetListener = new DataSetListenerAdapter(this);
+  private final Timer repaintTimer;
+  
+  private Geometry cached;
+  private Geometry shown;
+  private MapView mapView;
+  
+  ClipboardPreview() {
+    repaintTimer = new Timer(FRAME_MILLIS, e -> {
+      if(mapView != null) {
+        mapView.repaint();
+      }
+    });
+    repaintTimer.setRepeats(false);
+    DatasetEventManager.getInstance().addDatasetListener(dataSetListener, FireMode.IN_EDT_CONSOLIDATED);
+  }
+  
+  void destroy() {
+    hide();
+    
+    if(mapView != null) {
+      mapView.removeTemporaryLayer(this);
+      mapView = null;
+    }
+    
+    DatasetEventManager.getInstance().removeDatasetListener(dataSetListener);
+    cached = null;
+  }
+  
+  /**
+   * Shows the given clipboard, must be called in the EDT.
+   */
+  void show(ClipboardEntry entry) {
+    show(entry.getStore());
+  }
+  
+  private void show(PrimitiveIdStore store) {
+    final int request = generation.incrementAndGet();
+    final DataSet ds = OsmDataManager.getInstance().getActiveDataSet();
+    
+    if(ds == null || store.isEmpty()) {
+      hide();
+      return;
+    }
+    
+    if(cached != null && cached.matches(store, ds)) {
+      setShown(cached);
+      return;
+    }
+    
+    final PrimitiveIdStore snapshot = store.view(false);
+    final int modCount = store.getModCount();
+    
+    EXECUTOR.execute(() -> {
+      final Geometry geometry = Geometry.collect(snapshot, ds, () -> generation.get() != request);
+      
+      if(geometry != null) {
+        geometry.store = store;
+        geometry.modCount = modCount;
+        geometry.dataSet = ds;
+        
+        SwingUtilities.invokeLater(() -> {
+          if(generation.get() == request) {
+            cached = geometry;
+            setShown(geometry);
+          }
+        });
+      }
+    });
+  }
+  
+  /**
+   * Removes the preview from the map and cancels a pending one, must be called in the EDT.
+   */
+  void hide() {
+    generation.incrementAndGet();
+    setShown(null);
+  }
+  
+  private void setShown(Geometry geometry) {
+    shown = geometry;
+    
+    final MapView mv = MainApplication.getMap() != null ? MainApplication.getMap().mapView : null;
+    
+    if(mv != mapView) {
+      if(mapView != null) {
+        mapView.removeTemporaryLayer(this);
+      }
+      
+      mapView = mv;
+      
+      if(mapView != null) {
+        mapView.addTemporaryLayer(this);
+      }
+    }
+    
+    if(!repaintTimer.isRunning()) {
+      repaintTimer.start();
+    }
+  }
+  
+  @Override
+  public void paint(Graphics2D g, MapView mv, Bounds bbox) {
+    final Geometry geometry = shown;
+    
+    if(geometry == null || geometry.dataSet != OsmDataManager.getInstance().getActiveDataSet()) {
+      return;
+    }
+    
+    final AffineTransform transform = mv.getAffineTransform();
+    final Graphics2D g2 = (Graphics2D)g.create();
+    
+    try {
+      g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      g2.setColor(COLOR);
+      g2.setStroke(new BasicStroke(4, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+      g2.draw(transform.createTransformedShape(geometry.ways));
+      
+      if(geometry.nodeCount > 0) {
+        final double[] points = new double[geometry.nodeCount * 2];
+        transform.transform(geometry.nodes, 0, points, 0, geometry.nodeCount);
+        
+        for(int i = 0; i < points.length; i += 2) {
+          g2.fillRect((int)points[i] - NODE_SIZE / 2, (int)points[i + 1] - NODE_SIZE / 2, NODE_SIZE, NODE_SIZE);
+        }
+      }
+    } finally {
+      g2.dispose();
+    }
+  }
+  
+  @Override
+  public void processDatasetEvent(AbstractDatasetChangedEvent event) {
+    cached = null;
+    
+    // the shown geometry is outdated too, collect it again
+    final Geometry current = shown;
+    
+    if(current != null && current.dataSet == event.getDataset()) {
+      show(current.store);
+    }
+  }
+  
+  /**
+   * Way segments as one path and nodes as coordinate pairs, all in east/north.
+   */
+  private static final class Geometry {
+    private final Path2D.Double ways = new Path2D.Double();
+    private double[] nodes = new double[32];
+    private int nodeCount;
+    
+    private PrimitiveIdStore store;
+    private int modCount;
+    private DataSet dataSet;
+    
+    private boolean matches(PrimitiveIdStore store, DataSet ds) {
+      return this.store == store && modCount == store.getModCount() && dataSet == ds;
+    }
+    
+    private static Geometry collect(PrimitiveIdStore store, DataSet ds, BooleanSupplier canceled) {
+      final Geometry geometry = new Geometry();
+      
+      ds.getReadLock().lock();
+      
+      try {
+        final List<OsmPrimitive> primitives = store.resolve(ds, ClipboardEntry.ALL);
+        
+        for(int i = 0; i < primitives.size(); i++) {
+          if((i & 0x3FF) == 0 && canceled.getAsBoolean()) {
+            return null;
+          }
+          
+          final OsmPrimitive p = primitives.get(i);
+          
+          if(p instanceof Relation) {
+            for(OsmPrimitive member : ((Relation)p).getMemberPrimitivesList()) {
+              geometry.add(member);
+            }
+          }
+          else {
+            geometry.add(p);
+          }
+        }
+      } finally {
+        ds.getReadLock().unlock();
+      }
+      
+      return geometry;
+    }
+    
+    private void add(OsmPrimitive p) {
+      if(p instanceof Node) {
+        final EastNorth en = ((Node)p).getEastNorth();
+        
+        if(en != null) {
+          if(nodeCount * 2 == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+          }
+          
+          nodes[nodeCount * 2] = en.east();
+          nodes[nodeCount * 2 + 1] = en.north();
+          nodeCount++;
+        }
+      }
+      else if(p instanceof Way) {
+        boolean first = true;
+        
+        for(Node n : ((Way)p).getNodes()) {
+          final EastNorth en = n.getEastNorth();
+          
+          if(en == null) {
+            first = true;
+          }
+          else if(first) {
+            ways.moveTo(en.east(), en.north());
+            first = false;
+          }
+          else {
+            ways.lineTo(en.east(), en.north());
+          }
+        }
+      }
+    }
+  }
+}
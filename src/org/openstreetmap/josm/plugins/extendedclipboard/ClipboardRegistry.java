@@ -0,0 +1,176 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.swing.DefaultListModel;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter;
+import org.openstreetmap.josm.data.osm.event.DatasetEventManager;
+import org.openstreetmap.josm.data.osm.event.DatasetEventManager.FireMode;
+import org.openstreetmap.josm.data.osm.event.TagsChangedEvent;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerAddEvent;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerChangeListener;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerOrderChangeEvent;
+import org.openstreetmap.josm.gui.layer.LayerManager.LayerRemoveEvent;
+import org.openstreetmap.josm.gui.layer.OsmDataLayer;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * The clipboards of each data layer.
+ * <p>
+ * The clipboards of a layer are dropped when the layer is removed. Depending on the
+ * preferences they are stored by the {@link ClipboardStorage} and kept in memory as id only
+ * snapshots before. Both are given back to a layer that is opened later with the same data.
+ * <p>
+ * It also counts the changes of the data that may move objects, so cached geometry of
+ * clipboards can tell if it is outdated without listening itself.
+ */
+final class ClipboardRegistry implements LayerChangeListener, DataSetListenerAdapter.Listener {
+  static final String PREF_KEEP_CLIPBOARDS_OF_REMOVED_LAYERS = "extendedclipboard.keepClipboardsOfRemovedLayers";
+  static final String PREF_STORE_CLIPBOARDS = "extendedclipboard.storeClipboards";
+  private static final int MAX_SNAPSHOTS = 20;
+  
+  private static ClipboardRegistry instance;
+  
+  private final Map<OsmDataLayer, DefaultListModel<ClipboardEntry>> models = new HashMap<>();
+  private final Map<OsmDataLayer, String> keys = new HashMap<>();
+  private final Map<String, DefaultListModel<ClipboardEntry>> snapshots = new LinkedHashMap<String, DefaultListModel<ClipboardEntry>>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, DefaultListModel<ClipboardEntry>> eldest) {
+      return size() > MAX_SNAPSHOTS;
+    }
+  };
+  
+  private final DataSetListenerAdapter dataSetListener = new DataSetListenerAdapter(this);
+  private final AtomicInteger geometryVersion = new AtomicInteger();
+  
+  private ClipboardRegistry() {
+    instance = this;
+    MainApplication.getLayerManager().addLayerChangeListener(this);
+    DatasetEventManager.getInstance().addDatasetListener(dataSetListener, FireMode.IMMEDIATELY);
+  }
+  
+  static synchronized void initialize() {
+    if(instance == null) {
+      new ClipboardRegistry();
+    }
+  }
+  
+  static synchronized ClipboardRegistry get() {
+    if(instance == null) {
+      initialize();
+    }
+    
+    return instance;
+  }
+  
+  /**
+   * Identifies the data of a layer by its file or the bounds it was downloaded from.
+   *
+   * @return the key or <code>null</code> if the data can't be identified, e.g. a new layer
+   */
+  static String getKey(OsmDataLayer layer) {
+    final File file = layer.getAssociatedFile();
+    
+    if(file != null) {
+      return file.getAbsolutePath();
+    }
+    
+    final List<Bounds> bounds = layer.getDataSet().getDataSourceBounds();
+    
+    if(bounds != null && !bounds.isEmpty()) {
+      return bounds.stream().map(b -> b.encodeAsString(",")).sorted().collect(Collectors.joining(";", "bounds:", ""));
+    }
+    
+    return null;
+  }
+  
+  /**
+   * Returns the clipboards of the given layer, taken over from a snapshot or newly created if needed.
+   */
+  DefaultListModel<ClipboardEntry> get(OsmDataLayer layer, Supplier<DefaultListModel<ClipboardEntry>> factory) {
+    DefaultListModel<ClipboardEntry> model = models.get(layer);
+    
+    if(model == null) {
+      final String key = getKey(layer);
+      
+      if(key != null) {
+        model = snapshots.remove(key);
+        
+        if(model == null && Config.getPref().getBoolean(PREF_STORE_CLIPBOARDS, true)) {
+          model = ClipboardStorage.load(key);
+        }
+      }
+      
+      if(model == null) {
+        model = factory.get();
+      }
+      
+      models.put(layer, model);
+      keys.put(layer, key);
+    }
+    
+    return model;
+  }
+  
+  /**
+   * @return a number that changes with each change of the data except tag changes
+   */
+  int getGeometryVersion() {
+    return geometryVersion.get();
+  }
+  
+  @Override
+  public void processDatasetEvent(AbstractDatasetChangedEvent event) {
+    if(!(event instanceof TagsChangedEvent)) {
+      geometryVersion.incrementAndGet();
+    }
+  }
+  
+  @Override
+  public void layerRemoving(LayerRemoveEvent e) {
+    if(!(e.getRemovedLayer() instanceof OsmDataLayer)) {
+      return;
+    }
+    
+    final DefaultListModel<ClipboardEntry> model = models.remove(e.getRemovedLayer());
+    final String oldKey = keys.remove(e.getRemovedLayer());
+    final String key = getKey((OsmDataLayer)e.getRemovedLayer());
+    
+    if(model != null && key != null) {
+      if(Config.getPref().getBoolean(PREF_STORE_CLIPBOARDS, true)) {
+        ClipboardStorage.save(key, model);
+        
+        // the data was saved to a file or extended by a download, the old file would never be read again
+        if(oldKey != null && !oldKey.equals(key)) {
+          ClipboardStorage.delete(oldKey);
+        }
+      }
+      
+      if(!model.isEmpty() && Config.getPref().getBoolean(PREF_KEEP_CLIPBOARDS_OF_REMOVED_LAYERS, false)) {
+        snapshots.put(key, model);
+      }
+    }
+  }
+  
+  @Override
+  public void layerAdded(LayerAddEvent e) {
+    // models are created when a layer gets active
+  }
+  
+  @Override
+  public void layerOrderChanged(LayerOrderChangeEvent e) {
+    // nothing to do
+  }
+}
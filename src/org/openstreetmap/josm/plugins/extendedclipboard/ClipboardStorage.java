@@ -0,0 +1,220 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.swing.DefaultListModel;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Stores the clipboards of a data set in a binary file in the user data directory of the plugin.
+ * <p>
+ * Layout: magic, version, key, number of clipboards and per clipboard its name, the number
+ * of nodes, ways and relations, the length of the encoded ids and the ids encoded by
+ * {@link PrimitiveIdStore#encode(java.io.DataOutput)}. Files are read at once and the ids
+ * of a clipboard are only decoded when it is used.
+ * <p>
+ * At most 100 files are kept, the ones written least recently are removed.
+ */
+final class ClipboardStorage {
+  private static final int MAGIC = 0x45434C42;
+  private static final int VERSION = 1;
+  private static final String DIRECTORY = "clipboards";
+  private static final String EXTENSION = ".ecb";
+  private static final int MAX_FILES = 100;
+  
+  private ClipboardStorage() {
+    // Hide default constructor for utilities classes
+  }
+  
+  private static File getDirectory() {
+    final File dir = ExtendedClipboardPlugin.getInstance().getPluginDirs().getUserDataDirectory(false);
+    
+    return dir != null ? new File(dir, DIRECTORY) : null;
+  }
+  
+  private static File getFile(String key) {
+    final File dir = getDirectory();
+    
+    if(dir == null) {
+      return null;
+    }
+    
+    try {
+      final StringBuilder name = new StringBuilder();
+      
+      for(byte b : MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8))) {
+        name.append(String.format("%02x", b));
+      }
+      
+      return new File(dir, name.append(EXTENSION).toString());
+    } catch (NoSuchAlgorithmException e) {
+      Logging.error(e);
+      return null;
+    }
+  }
+  
+  /**
+   * Loads the stored clipboards of the given data set.
+   *
+   * @return the clipboards or <code>null</code> if nothing is stored
+   */
+  static DefaultListModel<ClipboardEntry> load(String key) {
+    final File file = getFile(key);
+    
+    if(file == null || !file.isFile()) {
+      return null;
+    }
+    
+    try {
+      // not mapped, a mapped file can't be replaced on Windows when the clipboards are saved
+      final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+      
+      if(buffer.getInt() != MAGIC || buffer.get() != VERSION || !key.equals(readString(buffer))) {
+        return null;
+      }
+      
+      final DefaultListModel<ClipboardEntry> model = new DefaultListModel<>();
+      final int count = (int)PrimitiveIdStore.readVarLong(buffer);
+      
+      for(int i = 0; i < count; i++) {
+        final String name = readString(buffer);
+        final int[] typeCounts = new int[3];
+        
+        for(int type = 0; type < typeCounts.length; type++) {
+          typeCounts[type] = (int)PrimitiveIdStore.readVarLong(buffer);
+        }
+        
+        final int length = (int)PrimitiveIdStore.readVarLong(buffer);
+        final ByteBuffer ids = buffer.slice();
+        ids.limit(length);
+        buffer.position(buffer.position() + length);
+        
+        model.addElement(new ClipboardEntry(name, new PrimitiveIdStore(ids, typeCounts)));
+      }
+      
+      return model;
+    } catch (IOException | RuntimeException e) {
+      Logging.warn("Could not read stored clipboards from " + file + ": " + e);
+      return null;
+    }
+  }
+  
+  /**
+   * Saves the given clipboards of a data set, if none contains anything a stored file is removed.
+   */
+  static void save(String key, DefaultListModel<ClipboardEntry> model) {
+    final File file = getFile(key);
+    
+    if(file == null) {
+      return;
+    }
+    
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      final ByteArrayOutputStream idBytes = new ByteArrayOutputStream();
+      final DataOutputStream idOut = new DataOutputStream(idBytes);
+      final List<ClipboardEntry> entries = new ArrayList<>();
+      
+      for(int i = 0; i < model.size(); i++) {
+        if(!model.get(i).isEmpty()) {
+          entries.add(model.get(i));
+        }
+      }
+      
+      if(entries.isEmpty()) {
+        Files.deleteIfExists(file.toPath());
+        return;
+      }
+      
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      writeString(out, key);
+      PrimitiveIdStore.writeVarLong(out, entries.size());
+      
+      for(ClipboardEntry entry : entries) {
+        idBytes.reset();
+        final int[] typeCounts = entry.getStore().encode(idOut);
+        
+        writeString(out, entry.toString());
+        
+        for(int count : typeCounts) {
+          PrimitiveIdStore.writeVarLong(out, count);
+        }
+        
+        PrimitiveIdStore.writeVarLong(out, idBytes.size());
+        idBytes.writeTo(out);
+      }
+      
+      out.flush();
+      
+      Files.createDirectories(file.getParentFile().toPath());
+      final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+      Files.write(tmp.toPath(), bytes.toByteArray());
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      removeOldFiles(file.getParentFile());
+    } catch (IOException e) {
+      Logging.warn("Could not store clipboards to " + file + ": " + e);
+    }
+  }
+  
+  /**
+   * Removes the stored clipboards of the given data set.
+   */
+  static void delete(String key) {
+    final File file = getFile(key);
+    
+    if(file == null) {
+      return;
+    }
+    
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      Logging.warn("Could not remove stored clipboards " + file + ": " + e);
+    }
+  }
+  
+  private static void removeOldFiles(File dir) throws IOException {
+    final File[] files = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+    
+    if(files == null || files.length <= MAX_FILES) {
+      return;
+    }
+    
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+    
+    for(int i = MAX_FILES; i < files.length; i++) {
+      Files.deleteIfExists(files[i].toPath());
+    }
+  }
+  
+  private static String readString(ByteBuffer buffer) {
+    final byte[] bytes = new byte[(int)PrimitiveIdStore.readVarLong(buffer)];
+    buffer.get(bytes);
+    
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+  
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    
+    PrimitiveIdStore.writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+}
@@ -0,0 +1,237 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Relation;
+import org.openstreetmap.josm.data.osm.RelationMember;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+
+/**
+ * Maps the objects of a clipboard to the same objects in another data set.
+ * <p>
+ * Objects are looked up by their id first. New objects and objects that are missing
+ * in the target are matched by position and tags: nodes through a grid of all target
+ * nodes that is built once per transfer and searched in the cells around the position,
+ * ways and relations through the referrers of their matched nodes and members.
+ */
+final class ClipboardTransfer {
+  /** Nodes closer than this in both directions, in degrees, are at the same position. */
+  private static final double TOLERANCE = 1e-7;
+  
+  private final DataSet source;
+  private final DataSet target;
+  private final Map<OsmPrimitive, OsmPrimitive> matched = new HashMap<>();
+  private Map<Long, List<Node>> nodeIndex;
+  
+  ClipboardTransfer(DataSet source, DataSet target) {
+    this.source = source;
+    this.target = target;
+  }
+  
+  /**
+   * Maps the given ids, objects without a match are left out. Both data sets must be read locked.
+   *
+   * @return the ids in the target data set or <code>null</code> if canceled
+   */
+  PrimitiveIdStore transfer(PrimitiveIdStore store, ProgressMonitor monitor) {
+    final PrimitiveIdStore result = new PrimitiveIdStore();
+    
+    monitor.setTicksCount(store.size());
+    
+    for(int i = 0; i < store.size(); i++) {
+      if((i & 0x3FF) == 0) {
+        if(monitor.isCanceled()) {
+          return null;
+        }
+        
+        monitor.setTicks(i);
+      }
+      
+      final long packed = store.get(i);
+      final int type = PrimitiveIdStore.typeOf(packed);
+      final long id = PrimitiveIdStore.idOf(packed);
+      OsmPrimitive p = id > 0 ? getById(target, id, type) : null;
+      
+      if(p == null) {
+        final OsmPrimitive original = getById(source, id, type);
+        p = original != null ? match(original) : null;
+      }
+      
+      if(p != null) {
+        result.add(p);
+      }
+    }
+    
+    return result;
+  }
+  
+  private static OsmPrimitive getById(DataSet ds, long id, int type) {
+    final OsmPrimitive p = ds.getPrimitiveById(id, PrimitiveIdStore.primitiveTypeOf(type));
+    
+    return p != null && !p.isDeleted() ? p : null;
+  }
+  
+  private OsmPrimitive match(OsmPrimitive p) {
+    if(!p.isNew()) {
+      final OsmPrimitive byId = getById(target, p.getUniqueId(), PrimitiveIdStore.typeOf(p.getType()));
+      
+      if(byId != null) {
+        return byId;
+      }
+    }
+    
+    if(matched.containsKey(p)) {
+      return matched.get(p);
+    }
+    
+    // guards against relations that contain themselves
+    matched.put(p, null);
+    
+    final OsmPrimitive result;
+    
+    if(p instanceof Node) {
+      result = matchNode((Node)p);
+    }
+    else if(p instanceof Way) {
+      result = matchWay((Way)p);
+    }
+    else {
+      result = matchRelation((Relation)p);
+    }
+    
+    matched.put(p, result);
+    
+    return result;
+  }
+  
+  private static long cell(double coordinate) {
+    return (long)Math.floor(coordinate / TOLERANCE);
+  }
+  
+  private static long cellOf(long latCell, long lonCell) {
+    return latCell * 3_600_000_003L + lonCell;
+  }
+  
+  private Node matchNode(Node n) {
+    if(!n.isLatLonKnown()) {
+      return null;
+    }
+    
+    if(nodeIndex == null) {
+      nodeIndex = new HashMap<>();
+      
+      for(Node candidate : target.getNodes()) {
+        if(!candidate.isDeleted() && candidate.isLatLonKnown()) {
+          nodeIndex.computeIfAbsent(cellOf(cell(candidate.lat()), cell(candidate.lon())), k -> new ArrayList<>(1)).add(candidate);
+        }
+      }
+    }
+    
+    // cells are as large as the tolerance, so a match is in the cell of the node or a neighbour
+    final long latCell = cell(n.lat());
+    final long lonCell = cell(n.lon());
+    Node result = null;
+    double resultDistance = Double.MAX_VALUE;
+    
+    for(long lat = latCell - 1; lat <= latCell + 1; lat++) {
+      for(long lon = lonCell - 1; lon <= lonCell + 1; lon++) {
+        final List<Node> candidates = nodeIndex.get(cellOf(lat, lon));
+        
+        if(candidates == null) {
+          continue;
+        }
+        
+        for(Node candidate : candidates) {
+          final double dLat = Math.abs(candidate.lat() - n.lat());
+          final double dLon = Math.abs(candidate.lon() - n.lon());
+          
+          if(dLat <= TOLERANCE && dLon <= TOLERANCE && dLat + dLon < resultDistance && candidate.getKeys().equals(n.getKeys())) {
+            result = candidate;
+            resultDistance = dLat + dLon;
+          }
+        }
+      }
+    }
+    
+    return result;
+  }
+  
+  private Way matchWay(Way w) {
+    final List<Node> nodes = new ArrayList<>(w.getNodesCount());
+    
+    for(Node n : w.getNodes()) {
+      final OsmPrimitive node = match(n);
+      
+      if(node == null) {
+        return null;
+      }
+      
+      nodes.add((Node)node);
+    }
+    
+    if(nodes.isEmpty()) {
+      return null;
+    }
+    
+    for(OsmPrimitive referrer : nodes.get(0).getReferrers()) {
+      if(referrer instanceof Way && !referrer.isDeleted() && ((Way)referrer).getNodes().equals(nodes)
+          && referrer.getKeys().equals(w.getKeys())) {
+        return (Way)referrer;
+      }
+    }
+    
+    return null;
+  }
+  
+  private Relation matchRelation(Relation r) {
+    final List<RelationMember> members = r.getMembers();
+    final List<OsmPrimitive> mapped = new ArrayList<>(members.size());
+    
+    for(RelationMember member : members) {
+      final OsmPrimitive p = match(member.getMember());
+      
+      if(p == null) {
+        return null;
+      }
+      
+      mapped.add(p);
+    }
+    
+    if(mapped.isEmpty()) {
+      return null;
+    }
+    
+    for(OsmPrimitive referrer : mapped.get(0).getReferrers()) {
+      if(referrer instanceof Relation && !referrer.isDeleted() && referrer.getKeys().equals(r.getKeys())
+          && hasMembers((Relation)referrer, members, mapped)) {
+        return (Relation)referrer;
+      }
+    }
+    
+    return null;
+  }
+  
+  private static boolean hasMembers(Relation candidate, List<RelationMember> members, List<OsmPrimitive> mapped) {
+    final List<RelationMember> candidateMembers = candidate.getMembers();
+    
+    if(candidateMembers.size() != members.size()) {
+      return false;
+    }
+    
+    for(int i = 0; i < members.size(); i++) {
+      if(candidateMembers.get(i).getMember() != mapped.get(i) || !candidateMembers.get(i).getRole().equals(members.get(i).getRole())) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+}
@@ -4,34 +4,40 @@ package org.openstreetmap.josm.plugins.extendedclipboard;
 import static org.openstreetmap.josm.tools.I18n.tr;
 
 import java.awt.Component;
+import java.awt.GridBagLayout;
 import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Date;
-import java.util.Hashtable;
-import java.util.LinkedHashSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
 import javax.swing.BorderFactory;
+import javax.swing.ButtonGroup;
 import javax.swing.DefaultListModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
 import javax.swing.JList;
+import javax.swing.JMenu;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
+import javax.swing.JRadioButton;
+import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
@@ -42,15 +48,19 @@ import org.openstreetmap.josm.actions.JosmAction;
 import org.openstreetmap.josm.actions.relation.SelectInRelationListAction;
 import org.openstreetmap.josm.actions.relation.SelectMembersAction;
 import org.openstreetmap.josm.actions.relation.SelectRelationAction;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.osm.BBox;
 import org.openstreetmap.josm.data.osm.DataSelectionListener;
 import org.openstreetmap.josm.data.osm.DataSet;
-import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmDataManager;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
-import org.openstreetmap.josm.data.osm.Relation;
-import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.data.osm.event.SelectionEventManager;
+import org.openstreetmap.josm.data.osm.search.SearchCompiler;
+import org.openstreetmap.josm.data.osm.search.SearchCompiler.Match;
+import org.openstreetmap.josm.data.osm.search.SearchParseError;
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
 import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
 import org.openstreetmap.josm.gui.SideButton;
 import org.openstreetmap.josm.gui.dialogs.ToggleDialog;
 import org.openstreetmap.josm.gui.layer.Layer;
@@ -58,20 +68,20 @@ import org.openstreetmap.josm.gui.layer.MainLayerManager.ActiveLayerChangeEvent;
 import org.openstreetmap.josm.gui.layer.MainLayerManager.ActiveLayerChangeListener;
 import org.openstreetmap.josm.gui.layer.OsmDataLayer;
 import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.GBC;
 import org.openstreetmap.josm.tools.ImageProvider;
 import org.openstreetmap.josm.tools.ImageResource;
 import org.openstreetmap.josm.tools.Shortcut;
 import org.openstreetmap.josm.tools.Utils;
 
 public class ExtendedClipboardDialog extends ToggleDialog implements DataSelectionListener, ActiveLayerChangeListener {
-  private static final DateFormat FORMAT_DATE = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.MEDIUM);
   private static final DefaultListModel<ClipboardEntry> EMPTY_MODEL = new DefaultListModel<>();
   private static final int MAX_MODEL_SIZE = 10;
   private static final String PREF_NAMES = "extendedclipboard.pref.names";
   private static final String PREF_CREATE_CLIPBOARD_ON_ADDING = "extendedclipboard.createClipboardOnAdding";
+  private static final String PREF_FILTER_EXPRESSION = "extendedclipboard.filterExpression";
   
   private final JList<ClipboardEntry> clipboard;
-  private final Hashtable<OsmDataLayer, DefaultListModel<ClipboardEntry>> modelTable;
   private DefaultListModel<ClipboardEntry> model;
   
   private final AddAction add = new AddAction();
@@ -82,10 +92,21 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
   private final ReverseAction reverse = new ReverseAction();
   private final ReverseActionAdd reverseAdd = new ReverseActionAdd();
   private final RestoreAction restore = new RestoreAction();
+  private final AddToSelectionAction addToSelection = new AddToSelectionAction();
+  private final RemoveFromSelectionAction removeFromSelection = new RemoveFromSelectionAction();
   private final ClearAction clear = new ClearAction();
   private final DeleteAction delete = new DeleteAction();
   private final SelectNodesAction selectNodes = new SelectNodesAction();
   private final SelectWaysAction selectWays = new SelectWaysAction();
+  private final CombineAction combine = new CombineAction();
+  private final MergeDuplicatesAction mergeDuplicates = new MergeDuplicatesAction();
+  private final TransferAction transfer = new TransferAction();
+  private final FilterAction filter = new FilterAction();
+  private final ZoomAction zoom = new ZoomAction();
+  
+  private final ClipboardPreview preview = new ClipboardPreview();
+  private PrimitiveIdStore membershipStore;
+  private int membershipModCount;
   
   /**
    * The Add button (needed to be able to disable it)
@@ -101,6 +122,7 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
   
   private final JPopupMenu listPopupMenu = new JPopupMenu();
   private final JMenuItem rememberItem = new JMenuItem();
+  private final JMenu historyMenu = new JMenu(tr("Selection history"));
   private final AbstractAction remember;
   private final AbstractAction unremember;
   
@@ -117,7 +139,6 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
     super(tr("Extended Clipboard"), "extendedclipboard", tr("Store selection for later reselection."),
         Shortcut.registerShortcut("ExtendedClipBoardDialog.extendedclipboard", tr("Windows: {0}", tr("Extended Clipboard")), KeyEvent.VK_E,
                 Shortcut.ALT_CTRL_SHIFT), 150, true);
-    modelTable = new Hashtable<>();
     clipboard = new JList<>();    
     remember = new AbstractAction(tr("Remember clipboard name"), ImageProvider.get("save")) {
       @Override
@@ -216,12 +237,11 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
         }
         
         if(index != indexMouse) {
-          if(indexMouse >= 0) {
-            model.get(indexMouse).highlight(false);
-          }
-          
           if(index >= 0) {
-            model.get(index).highlight(true);
+            preview.show(model.get(index));
+          }
+          else {
+            preview.hide();
           }
           
           indexMouse = index;
@@ -233,16 +253,13 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
         indexMouse = clipboard.locationToIndex(e.getPoint());
         
         if(indexMouse >= 0) {
-          model.get(indexMouse).highlight(true);
+          preview.show(model.get(indexMouse));
         }
       }
       
       @Override
       public void mouseExited(MouseEvent e) {
-        if(indexMouse >= 0) {
-          model.get(indexMouse).highlight(false);
-        }
-        
+        preview.hide();
         indexMouse = -1;
       }
       
@@ -322,6 +339,27 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
             item.setSelected(Config.getPref().getBoolean(PREF_CREATE_CLIPBOARD_ON_ADDING, true));
             item.addActionListener(a -> Config.getPref().putBoolean(PREF_CREATE_CLIPBOARD_ON_ADDING, !Config.getPref().getBoolean(PREF_CREATE_CLIPBOARD_ON_ADDING, true)));
             
+            prefMenu.add(item);
+            
+            item = new JCheckBoxMenuItem(tr("Store clipboards on disk"));
+            item.setToolTipText(tr("The clipboards of a closed layer are given back when the same file or the same download area is opened again, also after a restart."));
+            item.setSelected(Config.getPref().getBoolean(ClipboardRegistry.PREF_STORE_CLIPBOARDS, true));
+            item.addActionListener(a -> Config.getPref().putBoolean(ClipboardRegistry.PREF_STORE_CLIPBOARDS, !Config.getPref().getBoolean(ClipboardRegistry.PREF_STORE_CLIPBOARDS, true)));
+            
+            prefMenu.add(item);
+            
+            item = new JCheckBoxMenuItem(tr("Keep clipboards of closed layers"));
+            item.setToolTipText(tr("The clipboards are kept in memory and given back when the same file or the same download area is opened again."));
+            item.setSelected(Config.getPref().getBoolean(ClipboardRegistry.PREF_KEEP_CLIPBOARDS_OF_REMOVED_LAYERS, false));
+            item.addActionListener(a -> Config.getPref().putBoolean(ClipboardRegistry.PREF_KEEP_CLIPBOARDS_OF_REMOVED_LAYERS, !Config.getPref().getBoolean(ClipboardRegistry.PREF_KEEP_CLIPBOARDS_OF_REMOVED_LAYERS, false)));
+            
+            prefMenu.add(item);
+            
+            item = new JCheckBoxMenuItem(tr("Record selection history"));
+            item.setToolTipText(tr("The last selections can be restored from the context menu of the clipboard list."));
+            item.setSelected(SelectionHistory.get().isEnabled());
+            item.addActionListener(a -> SelectionHistory.get().setEnabled(!SelectionHistory.get().isEnabled()));
+            
             prefMenu.add(item);
             prefMenu.show((JButton)e.getSource(), ((JButton)e.getSource()).getWidth(), ((JButton)e.getSource()).getHeight());
           }
@@ -335,6 +373,9 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
   }
   
   private void createSelectionPopupMenu() {
+    selectionPopupMenu.add(addToSelection);
+    selectionPopupMenu.add(removeFromSelection);
+    selectionPopupMenu.addSeparator();
     selectionPopupMenu.add(selectNodes);
     selectionPopupMenu.add(selectWays);
     selectionPopupMenu.addSeparator();
@@ -362,15 +403,23 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
     listPopupMenu.add(reverseAdd);
     listPopupMenu.addSeparator();
     listPopupMenu.add(restore);
+    listPopupMenu.add(addToSelection);
+    listPopupMenu.add(removeFromSelection);
+    listPopupMenu.add(zoom);
     listPopupMenu.addSeparator();
     listPopupMenu.add(selectNodes);
     listPopupMenu.add(selectWays);
+    listPopupMenu.add(filter);
     listPopupMenu.addSeparator();
     listPopupMenu.add(selectInRelationList);
     listPopupMenu.add(selectRelations);
     listPopupMenu.add(selectRelationMembers);
     listPopupMenu.addSeparator();
     listPopupMenu.add(clipboardNew);
+    listPopupMenu.add(combine);
+    listPopupMenu.add(mergeDuplicates);
+    listPopupMenu.add(transfer);
+    listPopupMenu.add(historyMenu);
     listPopupMenu.add(edit);
     listPopupMenu.add(delete);
   }
@@ -393,9 +442,11 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
       selectRelationMembers.setEnabled(entry.containsRelations());
       
       if(entry.containsRelations()) {
-        selectInRelationList.setPrimitives(entry.getRelations());
-        selectRelations.setPrimitives(entry.getRelations());
-        selectRelationMembers.setPrimitives(entry.getRelations());
+        final Collection<OsmPrimitive> relations = entry.getRelations();
+        
+        selectInRelationList.setPrimitives(relations);
+        selectRelations.setPrimitives(relations);
+        selectRelationMembers.setPrimitives(relations);
       }
     }
     else {
@@ -403,6 +454,48 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
       selectRelations.setEnabled(false);
       selectRelationMembers.setEnabled(false);
     }
+    
+    transfer.updateEnabledState();
+    updateHistoryMenu();
+  }
+  
+  private void updateHistoryMenu() {
+    historyMenu.removeAll();
+    historyMenu.setVisible(SelectionHistory.get().isEnabled());
+    
+    if(!historyMenu.isVisible()) {
+      return;
+    }
+    
+    final List<SelectionHistory.Entry> entries = SelectionHistory.get().getEntries(OsmDataManager.getInstance().getActiveDataSet());
+    
+    for(SelectionHistory.Entry entry : entries) {
+      final JMenu entryMenu = new JMenu(entry.toString());
+      
+      entryMenu.add(new AbstractAction(tr("Restore")) {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+          final PrimitiveIdStore store = entry.toStore();
+          
+          if(store != null) {
+            new ClipboardEntry(entry.toString(), store).restore();
+          }
+        }
+      });
+      entryMenu.add(new AbstractAction(tr("Copy to new clipboard")) {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+          final PrimitiveIdStore store = entry.toStore();
+          
+          if(store != null && model != null) {
+            addClipboardEntry(new ClipboardEntry(null, store));
+          }
+        }
+      });
+      historyMenu.add(entryMenu);
+    }
+    
+    historyMenu.setEnabled(!entries.isEmpty());
   }
 
   private void addNewClipboardEntry() {
@@ -411,7 +504,10 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
   }
   
   private ClipboardEntry addNewClipboardEntry(final Collection<OsmPrimitive> selection, String name) {
-    ClipboardEntry entry = new ClipboardEntry(name, selection == null ? OsmDataManager.getInstance().getActiveDataSet().getSelected() : selection);
+    return addClipboardEntry(new ClipboardEntry(name, selection == null ? OsmDataManager.getInstance().getActiveDataSet().getSelected() : selection));
+  }
+  
+  private ClipboardEntry addClipboardEntry(ClipboardEntry entry) {
     model.add(0, entry);
       
     if(model.size() > MAX_MODEL_SIZE) {
@@ -424,18 +520,58 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
     return entry;
   }
   
+  /**
+   * Only recounts the selected members of the clipboard if another clipboard was selected or its content changed.
+   */
+  private void updateMembership() {
+    final ClipboardEntry entry = clipboard.getSelectedIndex() >= 0 ? clipboard.getSelectedValue() : null;
+    final PrimitiveIdStore store = entry != null ? entry.getStore() : null;
+    
+    if(store != null) {
+      store.updateUploaded();
+    }
+    
+    if(store != membershipStore) {
+      membershipStore = store;
+      SelectionSummary.get().setMembership(entry != null ? entry::containsPrimitive : null);
+    }
+    else if(store != null && store.getModCount() != membershipModCount) {
+      SelectionSummary.get().invalidateMembers();
+    }
+    
+    membershipModCount = store != null ? store.getModCount() : 0;
+  }
+  
+  /**
+   * @return <code>true</code> if all selected objects are part of the selected clipboard,
+   * a selection larger than the clipboard is rejected without counting the members
+   */
+  private boolean isSelectionContained() {
+    final ClipboardEntry entry = clipboard.getSelectedIndex() >= 0 ? clipboard.getSelectedValue() : null;
+    
+    return entry != null && SelectionSummary.get().getSize() <= entry.size() && SelectionSummary.get().isSelectionMember();
+  }
+  
   private void updateBtnEnabledState() {
+    updateMembership();
     add.updateEnabledState();
     addNew.updateEnabledState();
     edit.updateEnabledState();
     reverse.updateEnabledState();
     reverseAdd.updateEnabledState();
     restore.updateEnabledState();
+    addToSelection.updateEnabledState();
+    removeFromSelection.updateEnabledState();
     delete.updateEnabledState();
     clear.updateEnabledState();
     remove.updateEnabledState();
     selectNodes.updateEnabledState();
     selectWays.updateEnabledState();
+    combine.updateEnabledState();
+    mergeDuplicates.updateEnabledState();
+    transfer.updateEnabledState();
+    filter.updateEnabledState();
+    zoom.updateEnabledState();
     repaintRow(clipboard.getSelectedIndex());
   }
 
@@ -447,13 +583,13 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
   
   private void updateBtnAddIconAndTooltip(DataSet ds, boolean ctrl_down) {
     if(clipboard != null && model != null && ds != null) {
-      if((iconAddToNewList && clipboard.getSelectedIndex() >= 0 && (!clipboard.getSelectedValue().containsAll(ds.getSelected()) ||
+      if((iconAddToNewList && clipboard.getSelectedIndex() >= 0 && (!isSelectionContained() ||
           !Config.getPref().getBoolean(PREF_CREATE_CLIPBOARD_ON_ADDING, true)))) {
         btnAdd.setIcon(((ImageResource)add.getValue("ImageResource")).getImageIconBounded(ImageProvider.ImageSizes.SIDEBUTTON.getImageDimension()));
         btnAdd.setToolTipText((String)add.getValue(Action.SHORT_DESCRIPTION));
         iconAddToNewList = false;
       }
-      else if(ctrl_down || (!iconAddToNewList && (clipboard.getSelectedIndex() < 0 || (clipboard.getSelectedValue().containsAll(ds.getSelected())
+      else if(ctrl_down || (!iconAddToNewList && (clipboard.getSelectedIndex() < 0 || (isSelectionContained()
           && Config.getPref().getBoolean(PREF_CREATE_CLIPBOARD_ON_ADDING, true))))) {
         btnAdd.setIcon(((ImageResource)addNew.getValue("ImageResource")).getImageIconBounded(ImageProvider.ImageSizes.SIDEBUTTON.getImageDimension()));
         btnAdd.setToolTipText((String)addNew.getValue(Action.SHORT_DESCRIPTION));
@@ -492,6 +628,10 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
     if(model != null) {
       model.clear();
     }
+    
+    membershipStore = null;
+    SelectionSummary.get().setMembership(null);
+    preview.destroy();
   }
   
   @Override
@@ -499,6 +639,16 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
     return "Plugin/ExtendedClipboard";
   }
   
+  private DefaultListModel<ClipboardEntry> createModel() {
+    DefaultListModel<ClipboardEntry> newModel = new DefaultListModel<>();
+    
+    Config.getPref().getList(PREF_NAMES).forEach(entry -> {
+      newModel.addElement(new ClipboardEntry(entry));
+    });
+    
+    return newModel;
+  }
+  
   @Override
   public void activeOrEditLayerChanged(ActiveLayerChangeEvent e) {
     clipboard.setModel(EMPTY_MODEL);
@@ -508,16 +658,7 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
     
     if(layer != null && !layer.isLocked() && activeLayer != null && !activeLayer.isBackgroundLayer()) {
       clipboardNew.setEnabled(true);
-      model = modelTable.get(layer);
-      
-      if(model == null) {
-        model = new DefaultListModel<>();
-        modelTable.put(layer, model);
-        
-        Config.getPref().getList(PREF_NAMES).forEach(entry -> {
-          model.addElement(new ClipboardEntry(entry));
-        });
-      }
+      model = ClipboardRegistry.get().get(layer, this::createModel);
       
       clipboard.setModel(model);
       
@@ -551,6 +692,316 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
     }
   }
   
+  class CombineAction extends JosmAction {
+    CombineAction() {
+        super(tr("Combine selected clipboard with other clipboards"), /* ICON() */ "dialogs/mergedown", tr("Combine selected clipboard with other clipboards"),/*Shortcut*/ null, false);
+    }
+    
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      final ClipboardEntry entry = clipboard.getSelectedValue();
+      final JComboBox<ClipboardOperation> operation = new JComboBox<>(ClipboardOperation.values());
+      final ArrayList<JCheckBox> boxes = new ArrayList<>();
+      final ArrayList<ClipboardEntry> others = new ArrayList<>();
+      
+      JPanel content = new JPanel(new GridBagLayout());
+      GBC gbc = GBC.std(0,0);
+      
+      content.add(new JLabel(tr("Combine {0} with", entry.getNameOnly())), gbc.fill(GBC.HORIZONTAL));
+      content.add(operation, gbc.grid(0, gbc.gridy+1).insets(0, 5, 0, 0).fill(GBC.HORIZONTAL));
+      content.add(new JLabel(tr("Clipboards:")), gbc.grid(0, gbc.gridy+1).insets(0, 10, 0, 0).fill(GBC.NONE));
+      
+      for(int i = 0; i < model.size(); i++) {
+        if(model.get(i) != entry) {
+          JCheckBox box = new JCheckBox(model.get(i).toString());
+          boxes.add(box);
+          others.add(model.get(i));
+          content.add(box, gbc.grid(0, gbc.gridy+1).insets(0).fill(GBC.HORIZONTAL));
+        }
+      }
+      
+      if(JOptionPane.OK_OPTION == JOptionPane.showConfirmDialog(MainApplication.getMainFrame(), content, tr("Combine clipboards"), JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE)) {
+        final ClipboardOperation op = (ClipboardOperation)operation.getSelectedItem();
+        final ArrayList<PrimitiveIdStore> stores = new ArrayList<>();
+        final StringBuilder name = new StringBuilder(entry.getNameOnly());
+        
+        stores.add(entry.getStore().view(false));
+        
+        for(int i = 0; i < boxes.size(); i++) {
+          if(boxes.get(i).isSelected()) {
+            stores.add(others.get(i).getStore().view(false));
+            name.append(' ').append(op.getSymbol()).append(' ').append(others.get(i).getNameOnly());
+          }
+        }
+        
+        if(stores.size() > 1) {
+          final DefaultListModel<ClipboardEntry> target = model;
+          
+          MainApplication.worker.submit(new PleaseWaitRunnable(tr("Combining clipboards")) {
+            private PrimitiveIdStore result;
+            
+            @Override
+            protected void realRun() {
+              result = op.apply(stores, getProgressMonitor());
+            }
+            
+            @Override
+            protected void finish() {
+              if(result != null && target == model) {
+                addClipboardEntry(new ClipboardEntry(name.toString(), result));
+              }
+            }
+            
+            @Override
+            protected void cancel() {
+              // checked by the operation via the progress monitor
+            }
+          });
+        }
+      }
+    }
+    
+    @Override
+    protected final void updateEnabledState() {
+      setEnabled(clipboard != null && model != null && clipboard.getSelectedIndex() >= 0 && model.size() > 1);
+    }
+  }
+  
+  class MergeDuplicatesAction extends JosmAction {
+    MergeDuplicatesAction() {
+        super(tr("Merge duplicate clipboards"), /* ICON() */ null, tr("Remove clipboards with the same objects as a clipboard above them"),/*Shortcut*/ null, false);
+    }
+    
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      final ClipboardEntry selected = clipboard.getSelectedValue();
+      final Map<Long, List<ClipboardEntry>> kept = new HashMap<>();
+      
+      for(int i = 0; i < model.size(); i++) {
+        final ClipboardEntry entry = model.get(i);
+        
+        if(entry.isEmpty()) {
+          continue;
+        }
+        
+        final List<ClipboardEntry> candidates = kept.computeIfAbsent(entry.getStore().getFingerprint(), k -> new ArrayList<>(1));
+        
+        if(candidates.stream().anyMatch(c -> c.getStore().contentEquals(entry.getStore()))) {
+          model.removeElementAt(i--);
+        }
+        else {
+          candidates.add(entry);
+        }
+      }
+      
+      if(model.contains(selected)) {
+        clipboard.setSelectedValue(selected, true);
+      }
+      else if(!model.isEmpty()) {
+        clipboard.setSelectedIndex(0);
+      }
+      
+      updateBtnEnabledState();
+    }
+    
+    @Override
+    protected final void updateEnabledState() {
+      setEnabled(clipboard != null && model != null && model.size() > 1);
+    }
+  }
+  
+  class ZoomAction extends JosmAction {
+    ZoomAction() {
+        super(tr("Zoom to selected clipboard"), /* ICON() */ "dialogs/autoscale/selection", tr("Zoom to the objects of selected clipboard"),/*Shortcut*/ null, false);
+    }
+    
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      final BBox bbox = clipboard.getSelectedValue().getBBox();
+      
+      if(bbox.isValid() && MainApplication.getMap() != null) {
+        final BoundingXYVisitor v = new BoundingXYVisitor();
+        v.visit(new Bounds(bbox.getBottomLat(), bbox.getLeftLon(), bbox.getTopLat(), bbox.getRightLon()));
+        v.enlargeBoundingBox();
+        v.enlargeToMinSize(Config.getPref().getDouble("zoom_to_selection_min_size_in_meter", 100));
+        MainApplication.getMap().mapView.zoomTo(v);
+      }
+    }
+    
+    @Override
+    protected final void updateEnabledState() {
+      setEnabled(clipboard != null && model != null && clipboard.getSelectedIndex() >= 0 && !clipboard.getSelectedValue().isEmpty());
+    }
+  }
+  
+  class FilterAction extends JosmAction {
+    FilterAction() {
+        super(tr("Filter objects of selected clipboard"), /* ICON() */ "dialogs/search", tr("Filter objects of selected clipboard with a search expression"),/*Shortcut*/ null, false);
+    }
+    
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      final ClipboardEntry entry = clipboard.getSelectedValue();
+      final JTextField expression = new JTextField(Config.getPref().get(PREF_FILTER_EXPRESSION, ""), 30);
+      final JRadioButton createClipboard = new JRadioButton(tr("Create new clipboard"), true);
+      final JRadioButton select = new JRadioButton(tr("Select"));
+      final ButtonGroup group = new ButtonGroup();
+      group.add(createClipboard);
+      group.add(select);
+      
+      JPanel content = new JPanel(new GridBagLayout());
+      GBC gbc = GBC.std(0,0);
+      
+      content.add(new JLabel(tr("Search expression for the objects of {0}:", entry.getNameOnly())), gbc.fill(GBC.HORIZONTAL));
+      content.add(expression, gbc.grid(0, gbc.gridy+1).insets(0, 5, 0, 0).fill(GBC.HORIZONTAL));
+      content.add(createClipboard, gbc.grid(0, gbc.gridy+1).insets(0, 10, 0, 0).fill(GBC.HORIZONTAL));
+      content.add(select, gbc.grid(0, gbc.gridy+1).insets(0).fill(GBC.HORIZONTAL));
+      
+      if(JOptionPane.OK_OPTION != JOptionPane.showConfirmDialog(MainApplication.getMainFrame(), content, tr("Filter clipboard"), JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE)) {
+        return;
+      }
+      
+      final Match match;
+      
+      try {
+        match = SearchCompiler.compile(expression.getText());
+      } catch (SearchParseError ex) {
+        JOptionPane.showMessageDialog(MainApplication.getMainFrame(), ex.getMessage(), tr("Invalid search expression"), JOptionPane.ERROR_MESSAGE);
+        return;
+      }
+      
+      Config.getPref().put(PREF_FILTER_EXPRESSION, expression.getText());
+      
+      final DataSet ds = OsmDataManager.getInstance().getActiveDataSet();
+      final PrimitiveIdStore store = entry.getStore().view(false);
+      final DefaultListModel<ClipboardEntry> target = model;
+      final String name = entry.getNameOnly() + " [" + expression.getText() + "]";
+      final boolean selectResult = select.isSelected();
+      
+      MainApplication.worker.submit(new PleaseWaitRunnable(tr("Filtering clipboard")) {
+        private List<OsmPrimitive> result;
+        
+        @Override
+        protected void realRun() {
+          ds.getReadLock().lock();
+          
+          try {
+            final List<OsmPrimitive> primitives = store.resolve(ds, ClipboardEntry.ALL, getProgressMonitor());
+            
+            if(primitives != null && !getProgressMonitor().isCanceled()) {
+              // the objects can't change while the data set is read locked
+              result = primitives.parallelStream().filter(match).collect(Collectors.toList());
+            }
+          } finally {
+            ds.getReadLock().unlock();
+          }
+        }
+        
+        @Override
+        protected void finish() {
+          if(result == null || ds != OsmDataManager.getInstance().getActiveDataSet()) {
+            return;
+          }
+          
+          if(selectResult) {
+            ds.setSelected(result);
+          }
+          else if(target == model) {
+            addClipboardEntry(new ClipboardEntry(name, result));
+          }
+        }
+        
+        @Override
+        protected void cancel() {
+          // checked while resolving via the progress monitor
+        }
+      });
+    }
+    
+    @Override
+    protected final void updateEnabledState() {
+      setEnabled(clipboard != null && model != null && clipboard.getSelectedIndex() >= 0 && !clipboard.getSelectedValue().isEmpty());
+    }
+  }
+  
+  class TransferAction extends JosmAction {
+    TransferAction() {
+        super(tr("Transfer selected clipboard to another layer"), /* ICON() */ null, tr("Transfer selected clipboard to another layer"),/*Shortcut*/ null, false);
+    }
+    
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      final ClipboardEntry entry = clipboard.getSelectedValue();
+      final OsmDataLayer sourceLayer = MainApplication.getLayerManager().getActiveDataLayer();
+      final List<OsmDataLayer> layers = new ArrayList<>(MainApplication.getLayerManager().getLayersOfType(OsmDataLayer.class));
+      layers.remove(sourceLayer);
+      
+      final JComboBox<String> layer = new JComboBox<>(layers.stream().map(OsmDataLayer::getName).toArray(String[]::new));
+      
+      JPanel content = new JPanel(new GridBagLayout());
+      GBC gbc = GBC.std(0,0);
+      
+      content.add(new JLabel(tr("Transfer {0} to", entry.getNameOnly())), gbc.fill(GBC.HORIZONTAL));
+      content.add(layer, gbc.grid(0, gbc.gridy+1).insets(0, 5, 0, 0).fill(GBC.HORIZONTAL));
+      
+      if(sourceLayer != null && JOptionPane.OK_OPTION == JOptionPane.showConfirmDialog(MainApplication.getMainFrame(), content, tr("Transfer clipboard"), JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE)) {
+        final OsmDataLayer targetLayer = layers.get(layer.getSelectedIndex());
+        final DataSet source = sourceLayer.getDataSet();
+        final DataSet target = targetLayer.getDataSet();
+        final String name = tr("{0} from {1}", entry.getNameOnly(), sourceLayer.getName());
+        
+        entry.getStore().updateUploaded();
+        final PrimitiveIdStore store = entry.getStore().view(false);
+        
+        MainApplication.worker.submit(new PleaseWaitRunnable(tr("Transferring clipboard")) {
+          private PrimitiveIdStore result;
+          
+          @Override
+          protected void realRun() {
+            source.getReadLock().lock();
+            target.getReadLock().lock();
+            
+            try {
+              result = new ClipboardTransfer(source, target).transfer(store, getProgressMonitor());
+            } finally {
+              target.getReadLock().unlock();
+              source.getReadLock().unlock();
+            }
+          }
+          
+          @Override
+          protected void finish() {
+            if(result != null && MainApplication.getLayerManager().getLayers().contains(targetLayer)) {
+              final DefaultListModel<ClipboardEntry> targetModel = ClipboardRegistry.get().get(targetLayer, ExtendedClipboardDialog.this::createModel);
+              
+              if(targetModel == model) {
+                addClipboardEntry(new ClipboardEntry(name, result));
+              }
+              else {
+                targetModel.add(0, new ClipboardEntry(name, result));
+                
+                if(targetModel.size() > MAX_MODEL_SIZE) {
+                  targetModel.removeElementAt(targetModel.size()-1);
+                }
+              }
+            }
+          }
+          
+          @Override
+          protected void cancel() {
+            // checked by the transfer via the progress monitor
+          }
+        });
+      }
+    }
+    
+    @Override
+    protected final void updateEnabledState() {
+      setEnabled(clipboard != null && model != null && clipboard.getSelectedIndex() >= 0 && !clipboard.getSelectedValue().isEmpty()
+          && MainApplication.getLayerManager().getLayersOfType(OsmDataLayer.class).size() > 1);
+    }
+  }
+  
   class EditAction extends JosmAction {
     EditAction() {
         super(tr("Edit name of selected clipboard "), /* ICON() */ "dialogs/edit", tr("Edit name of selected clipboard "),/*Shortcut*/ null, false);
@@ -622,20 +1073,13 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
     
     @Override
     public void actionPerformed(ActionEvent e) {
-      LinkedHashSet<OsmPrimitive> reverse = new LinkedHashSet<>();
-      
       ClipboardEntry entry = clipboard.getSelectedValue();
-      OsmPrimitive[] arr = entry.selection.toArray(new OsmPrimitive[0]); 
-      
-      for(int i = arr.length-1; i >= 0; i--) {
-        reverse.add(arr[i]);
-      }
       
       if((e.getModifiers() & ActionEvent.CTRL_MASK) == ActionEvent.CTRL_MASK) {
-        entry = addNewClipboardEntry(reverse, entry.getNameOnly());
+        entry = addClipboardEntry(new ClipboardEntry(entry.getNameOnly(), entry.getStore().view(true)));
       }
       else {
-        entry.selection = reverse;
+        entry.reverse();
       }
       
       entry.updateReverseState();
@@ -685,7 +1129,7 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
           final Collection<OsmPrimitive> selection = OsmDataManager.getInstance().getActiveDataSet().getSelected();
           
           if((entry == null || ((e.getModifiers() & ActionEvent.CTRL_MASK) == ActionEvent.CTRL_MASK)
-              || clipboard.getSelectedIndex() < 0 || (clipboard.getSelectedValue().containsAll(selection)
+              || clipboard.getSelectedIndex() < 0 || (isSelectionContained()
                   && Config.getPref().getBoolean(PREF_CREATE_CLIPBOARD_ON_ADDING, true))
               ) && model != null) {
             addNewClipboardEntry();
@@ -762,7 +1206,7 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
         DataSet ds = OsmDataManager.getInstance().getActiveDataSet();
         setEnabled(ds != null && !ds.isLocked() &&
                 !Utils.isEmpty(OsmDataManager.getInstance().getInProgressSelection()) && !ds.isEmpty() && model != null
-                && clipboard.getSelectedIndex() >= 0 && clipboard.getSelectedValue().contains(OsmDataManager.getInstance().getActiveDataSet().getSelected())
+                && clipboard.getSelectedIndex() >= 0 && SelectionSummary.get().isAnySelectedMember()
             );
     }
   }
@@ -784,239 +1228,68 @@ public class ExtendedClipboardDialog extends ToggleDialog implements DataSelecti
     }
   }
   
-  class SelectNodesAction extends JosmAction {
-    SelectNodesAction() {
-        super(tr("Select nodes"), /* ICON() */ "data/node", tr("Select nodes"),/*Shortcut*/ null, false);
+  class AddToSelectionAction extends JosmAction {
+    AddToSelectionAction() {
+        super(tr("Add the objects of the selected clipboard to the selection"), /* ICON() */ null, tr("Add the objects of the selected clipboard to the selection"),/*Shortcut*/ null, false);
     }
     
     @Override
     public void actionPerformed(ActionEvent e) {
-      clipboard.getSelectedValue().restore(ClipboardEntry.NODES);
+      clipboard.getSelectedValue().addToSelection();
     }
     
-
     @Override
     protected final void updateEnabledState() {
-      setEnabled(clipboard != null && clipboard.getSelectedIndex() >= 0 && clipboard.getSelectedValue().containsNodes());
+      setEnabled(clipboard != null && clipboard.getSelectedIndex() >= 0 && !clipboard.getSelectedValue().isEmpty());
     }
   }
   
-  class SelectWaysAction extends JosmAction {
-    SelectWaysAction() {
-        super(tr("Select ways"), /* ICON() */ "data/way", tr("Select ways"),/*Shortcut*/ null, false);
+  class RemoveFromSelectionAction extends JosmAction {
+    RemoveFromSelectionAction() {
+        super(tr("Remove the objects of the selected clipboard from the selection"), /* ICON() */ null, tr("Remove the objects of the selected clipboard from the selection"),/*Shortcut*/ null, false);
     }
     
     @Override
     public void actionPerformed(ActionEvent e) {
-      clipboard.getSelectedValue().restore(ClipboardEntry.WAYS);
+      clipboard.getSelectedValue().removeFromSelection();
     }
-
+    
     @Override
     protected final void updateEnabledState() {
-      setEnabled(clipboard != null && clipboard.getSelectedIndex() >= 0 && clipboard.getSelectedValue().containsWays());
+      setEnabled(clipboard != null && clipboard.getSelectedIndex() >= 0 && !clipboard.getSelectedValue().isEmpty());
     }
   }
   
-  private final static class ClipboardEntry {
-    private static final String NODES = "nodes";
-    private static final String WAYS = "ways";
-    private static final String RELATIONS = "relations";
-    private static final String ALL = "relations";
-    
-    private static final String FORMAT_EXT = " ({1},{2},{3}) ({0})";
-    private static final String FORMAT_EXT_PATTERN =  FORMAT_EXT.replaceAll("\\{\\d{1}\\}", "\\\\d+").replace("(", "\\\\(").replace(")", "\\\\)");
-    private static final String REVERSE_INFO = " \u2B07";
-    
-    private LinkedHashSet<OsmPrimitive> selection;
-    
-    private LinkedHashSet<OsmPrimitive> nodes;
-    private LinkedHashSet<OsmPrimitive> ways;
-    private LinkedHashSet<OsmPrimitive> relations;
-    
-    private String name;
-    private String nameTemplate;
-    private String baseName;
-    
-    private ClipboardEntry(String name) {
-      this(name, null);
-    }
-    
-    private ClipboardEntry(Collection<OsmPrimitive> selection) {
-      this(FORMAT_DATE.format(new Date()), selection);
-    }
-    
-    private ClipboardEntry(String name, Collection<OsmPrimitive> selection) {
-      this.selection = new LinkedHashSet<>();
-      this.nodes = new LinkedHashSet<>();
-      this.ways = new LinkedHashSet<>();
-      this.relations = new LinkedHashSet<>();
-      
-      if(name == null) {
-        name = FORMAT_DATE.format(new Date());
-      }
-      
-      setName(name);
-      
-      if(selection != null) {
-        addAll(selection);
-      }
-    }
-    
-    public String getNameOnly() {
-      return baseName;
+  class SelectNodesAction extends JosmAction {
+    SelectNodesAction() {
+        super(tr("Select nodes"), /* ICON() */ "data/node", tr("Select nodes"),/*Shortcut*/ null, false);
     }
     
     @Override
-    public String toString() {
-      return name;
-    }
-    
-    private void restore() {
-      restore(ALL);
-    }
-    
-    private void restore(String type) {
-      if(!isEmpty()) {
-        OsmDataManager.getInstance().getActiveDataSet().clearSelection();
-        
-        if(Objects.equals(ALL, type)) {
-          OsmDataManager.getInstance().getActiveDataSet().setSelected(selection);
-        }
-        else if(Objects.equals(RELATIONS, type)) {
-          OsmDataManager.getInstance().getActiveDataSet().setSelected(relations);
-        }
-        else if(Objects.equals(WAYS, type)) {
-          OsmDataManager.getInstance().getActiveDataSet().setSelected(ways);
-        }
-        else if(Objects.equals(NODES, type)) {
-          OsmDataManager.getInstance().getActiveDataSet().setSelected(nodes);
-        }
-      }
-    }
-    
-    private void highlight(boolean value) {
-      selection.forEach(e -> {
-        if(e instanceof Relation) {
-          for(OsmPrimitive osm : ((Relation) e).getMemberPrimitivesList()) {
-            osm.setHighlighted(value);
-          }
-        }
-        else {
-          e.setHighlighted(value);
-        }
-      });
-    }
-    
-    private boolean isEmpty() {
-      return selection.isEmpty();
-    }
-    
-    private boolean containsAll(Collection<OsmPrimitive> selection) {
-      return this.selection != null && this.selection.containsAll(selection);
-    }
-    
-    private boolean contains(Collection<OsmPrimitive> selection) {
-      for(OsmPrimitive sel : selection) {
-        if(this.selection.contains(sel)) {
-          return true;
-        }
-      }
-      
-      return false;
-    }
-    
-    private void updateReverseState() {
-      if(nameTemplate.contains(REVERSE_INFO)) {
-        nameTemplate = baseName+FORMAT_EXT;
-      }
-      else {
-        nameTemplate = baseName+FORMAT_EXT+REVERSE_INFO;
-      }
-      
-      refreshName();
-    }
-    
-    private void setName(String name) {
-      if(name.matches(".*"+FORMAT_EXT_PATTERN+".*")) {
-        baseName = name.replaceAll(FORMAT_EXT_PATTERN, "");
-      }
-      else {
-        baseName = name;
-      }
-      
-      nameTemplate = baseName+FORMAT_EXT;
-      
-      if(nameTemplate.contains(REVERSE_INFO) && !nameTemplate.endsWith(REVERSE_INFO)) {
-        nameTemplate = nameTemplate.replace(REVERSE_INFO, "") + REVERSE_INFO;
-      }
-      
-      refreshName();
-    }
-    
-    private void addAll(Collection<OsmPrimitive> selection) {
-      for(OsmPrimitive s : selection) {
-        if(!this.selection.contains(s)) {
-          this.selection.add(s);
-          
-          if(s instanceof Node) {
-            this.nodes.add(s);
-          }
-          else if(s instanceof Way) {
-            this.ways.add(s);
-          }
-          else if(s instanceof Relation) {
-            this.relations.add(s);
-          }
-        }
-      }
-      refreshName();
-    }
-    
-    private void remove(Collection<OsmPrimitive> selection) {
-      this.selection.removeAll(selection);
-      this.nodes.removeAll(selection);
-      this.ways.removeAll(selection);
-      this.relations.removeAll(selection);
-      
-      refreshName();
-    }
-    
-    private boolean containsNodes() {
-      return !nodes.isEmpty();
-    }
-        
-    private boolean containsWays() {
-      return !ways.isEmpty();
-    }
-    
-    private boolean containsRelations() {
-      return !relations.isEmpty();
+    public void actionPerformed(ActionEvent e) {
+      clipboard.getSelectedValue().restore(ClipboardEntry.NODES);
     }
     
-    public LinkedHashSet<OsmPrimitive> getRelations() {
-      return relations;
+
+    @Override
+    protected final void updateEnabledState() {
+      setEnabled(clipboard != null && clipboard.getSelectedIndex() >= 0 && clipboard.getSelectedValue().containsNodes());
     }
-    
-    private void refreshName() {
-      name = nameTemplate.replace("{0}", String.valueOf(size())).replace("{1}", String.valueOf(nodes.size())).replace("{2}", String.valueOf(ways.size())).replace("{3}", String.valueOf(relations.size()));
+  }
+  
+  class SelectWaysAction extends JosmAction {
+    SelectWaysAction() {
+        super(tr("Select ways"), /* ICON() */ "data/way", tr("Select ways"),/*Shortcut*/ null, false);
     }
     
-    private void clear() {
-      this.selection.clear();
-      this.nodes.clear();
-      this.ways.clear();
-      this.relations.clear();
-      
-      refreshName();
+    @Override
+    public void actionPerformed(ActionEvent e) {
+      clipboard.getSelectedValue().restore(ClipboardEntry.WAYS);
     }
-    
-    private int size() {
-      if(selection != null) {
-        return selection.size();
-      }
-      else {
-        return 0;
-      }
+
+    @Override
+    protected final void updateEnabledState() {
+      setEnabled(clipboard != null && clipboard.getSelectedIndex() >= 0 && clipboard.getSelectedValue().containsWays());
     }
   }
 }
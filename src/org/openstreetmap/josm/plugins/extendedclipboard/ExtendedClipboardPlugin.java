@@ -1,11 +1,13 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.extendedclipboard;
 
+import org.openstreetmap.josm.gui.IconToggleButton;
 import org.openstreetmap.josm.gui.MapFrame;
 import org.openstreetmap.josm.plugins.Plugin;
 import org.openstreetmap.josm.plugins.PluginInformation;
 import org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist.NodeTemplateList;
 import org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist.NodeTemplateListDialog;
+import org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist.TemplateStampMapMode;
 
 /**
  * Collection of utilities
@@ -19,6 +21,9 @@ public class ExtendedClipboardPlugin extends Plugin {
   public ExtendedClipboardPlugin(PluginInformation info) {
     super(info);
     instance = this;
+    SelectionSummary.initialize();
+    ClipboardRegistry.initialize();
+    SelectionHistory.initialize();
     NodeTemplateList.initialize();
   }
 
@@ -39,6 +44,7 @@ public class ExtendedClipboardPlugin extends Plugin {
       dialog = new ExtendedClipboardDialog();
       newFrame.addToggleDialog(nodeTemplateDialog);
       newFrame.addToggleDialog(dialog);
+      newFrame.addMapMode(new IconToggleButton(new TemplateStampMapMode()));
     }
   }
 
@@ -0,0 +1,610 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.OsmPrimitiveType;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+
+/**
+ * Ordered set of primitive ids.
+ * <p>
+ * Each id is packed together with the type of the primitive into a single <code>long</code>,
+ * the insertion order is kept in an array and an open addressing hash table maps packed ids
+ * to their position. Primitives are only resolved against a data set when needed, so the
+ * store does not keep removed objects or whole data sets alive.
+ * <p>
+ * Reversing only flips the direction in which the array is read. Views share the arrays
+ * of their source until one of them is changed, a reversed store is turned back into
+ * the natural direction on its first change.
+ * <p>
+ * New primitives are additionally remembered by a weak reference, because their
+ * placeholder id changes when they are uploaded.
+ * <p>
+ * An order independent fingerprint of the content, the xor of the mixed packed ids, is
+ * kept up to date with each change, so stores with different content are told apart
+ * without comparing their ids.
+ */
+final class PrimitiveIdStore {
+  static final int NODE = 0;
+  static final int WAY = 1;
+  static final int RELATION = 2;
+  
+  private static final int TYPE_BITS = 2;
+  private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+  private static final long[] EMPTY = new long[0];
+  
+  private long[] ids;
+  private int size;
+  private int[] table;
+  private int[] typeCounts = new int[3];
+  private Map<Long, WeakReference<OsmPrimitive>> newPrimitives = new HashMap<>();
+  private long fingerprint;
+  
+  private boolean reversed;
+  private boolean shared;
+  private int modCount;
+  
+  /**
+   * Encoded ids that are decoded on first access, see {@link #encode(DataOutput)}
+   */
+  private ByteBuffer encoded;
+  
+  PrimitiveIdStore() {
+    ids = EMPTY;
+    table = new int[8];
+  }
+  
+  /**
+   * Creates a store that decodes the given ids on first access.
+   *
+   * @param encoded the ids as written by {@link #encode(DataOutput)}
+   * @param typeCounts the number of nodes, ways and relations
+   */
+  PrimitiveIdStore(ByteBuffer encoded, int[] typeCounts) {
+    this();
+    this.encoded = encoded;
+    System.arraycopy(typeCounts, 0, this.typeCounts, 0, this.typeCounts.length);
+    size = typeCounts[NODE] + typeCounts[WAY] + typeCounts[RELATION];
+  }
+  
+  /**
+   * Creates a store with the content of this one that shares the arrays until one of both is changed.
+   *
+   * @param reverse <code>true</code> for the reversed order of this store
+   */
+  PrimitiveIdStore view(boolean reverse) {
+    load();
+    
+    final PrimitiveIdStore view = new PrimitiveIdStore();
+    view.ids = ids;
+    view.size = size;
+    view.table = table;
+    view.typeCounts = typeCounts;
+    view.fingerprint = fingerprint;
+    view.newPrimitives = newPrimitives;
+    view.reversed = reversed ^ reverse;
+    view.shared = true;
+    shared = true;
+    
+    return view;
+  }
+  
+  static long pack(long uniqueId, int type) {
+    return (uniqueId << TYPE_BITS) | type;
+  }
+  
+  static long pack(OsmPrimitive p) {
+    return pack(p.getUniqueId(), typeOf(p.getType()));
+  }
+  
+  static long idOf(long packed) {
+    return packed >> TYPE_BITS;
+  }
+  
+  static int typeOf(long packed) {
+    return (int)(packed & TYPE_MASK);
+  }
+  
+  static int typeOf(OsmPrimitiveType type) {
+    switch(type) {
+      case NODE: return NODE;
+      case WAY: case CLOSEDWAY: return WAY;
+      default: return RELATION;
+    }
+  }
+  
+  static OsmPrimitiveType primitiveTypeOf(int type) {
+    switch(type) {
+      case NODE: return OsmPrimitiveType.NODE;
+      case WAY: return OsmPrimitiveType.WAY;
+      default: return OsmPrimitiveType.RELATION;
+    }
+  }
+  
+  private static int hash(long packed) {
+    long h = packed * 0x9E3779B97F4A7C15L;
+    return (int)(h ^ (h >>> 32));
+  }
+  
+  /**
+   * Spreads the bits of a packed id, see {@link #getFingerprint()}.
+   */
+  static long mix(long packed) {
+    long h = (packed ^ (packed >>> 33)) * 0xFF51AFD7ED558CCDL;
+    h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return h ^ (h >>> 33);
+  }
+  
+  private int slotOf(long packed) {
+    final int mask = table.length - 1;
+    int slot = hash(packed) & mask;
+    
+    while(table[slot] != 0 && ids[table[slot] - 1] != packed) {
+      slot = (slot + 1) & mask;
+    }
+    
+    return slot;
+  }
+  
+  /**
+   * Maps between positions in the order of the store and in the array, in both directions.
+   */
+  private int physical(int index) {
+    return reversed ? size - 1 - index : index;
+  }
+  
+  private int arrayIndexOf(long packed) {
+    load();
+    return table[slotOf(packed)] - 1;
+  }
+  
+  int indexOf(long packed) {
+    final int index = arrayIndexOf(packed);
+    
+    return index >= 0 ? physical(index) : -1;
+  }
+  
+  private void rebuildIndex(int capacity) {
+    int length = 8;
+    
+    while(length < capacity * 2) {
+      length <<= 1;
+    }
+    
+    table = new int[length];
+    
+    for(int i = 0; i < size; i++) {
+      table[slotOf(ids[i])] = i + 1;
+    }
+  }
+  
+  /**
+   * Makes sure the arrays are decoded, not shared and in natural order before they are changed.
+   */
+  private void prepareWrite() {
+    load();
+    modCount++;
+    
+    if(shared) {
+      ids = Arrays.copyOf(ids, size);
+      table = table.clone();
+      typeCounts = typeCounts.clone();
+      newPrimitives = new HashMap<>(newPrimitives);
+      shared = false;
+    }
+    
+    if(reversed) {
+      for(int i = 0, j = size - 1; i < j; i++, j--) {
+        long id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+      }
+      
+      reversed = false;
+      rebuildIndex(size);
+    }
+  }
+  
+  /**
+   * @return a number that changes with each change of the content
+   */
+  int getModCount() {
+    return modCount;
+  }
+  
+  int size() {
+    return size;
+  }
+  
+  boolean isEmpty() {
+    return size == 0;
+  }
+  
+  int count(int type) {
+    return typeCounts[type];
+  }
+  
+  long get(int index) {
+    load();
+    return ids[physical(index)];
+  }
+  
+  /**
+   * @return a hash of the content that does not depend on the order, equal for equal content
+   */
+  long getFingerprint() {
+    load();
+    return fingerprint;
+  }
+  
+  /**
+   * Checks if both stores contain the same ids regardless of their order. Stores
+   * that differ in size or fingerprint are rejected without comparing any id.
+   */
+  boolean contentEquals(PrimitiveIdStore other) {
+    if(size != other.size || getFingerprint() != other.getFingerprint()) {
+      return false;
+    }
+    
+    for(int i = 0; i < other.size; i++) {
+      if(arrayIndexOf(other.ids[i]) < 0) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  boolean contains(OsmPrimitive p) {
+    return arrayIndexOf(pack(p)) >= 0;
+  }
+  
+  boolean add(OsmPrimitive p) {
+    if(!add(pack(p))) {
+      return false;
+    }
+    
+    if(p.isNew()) {
+      newPrimitives.put(ids[size - 1], new WeakReference<>(p));
+    }
+    
+    return true;
+  }
+  
+  boolean add(long packed) {
+    if(arrayIndexOf(packed) >= 0) {
+      return false;
+    }
+    
+    prepareWrite();
+    
+    if(size == ids.length) {
+      ids = Arrays.copyOf(ids, Math.max(16, size * 2));
+    }
+    
+    ids[size++] = packed;
+    typeCounts[typeOf(packed)]++;
+    fingerprint ^= mix(packed);
+    
+    if(size * 2 > table.length) {
+      rebuildIndex(size);
+    }
+    else {
+      table[slotOf(packed)] = size;
+    }
+    
+    return true;
+  }
+  
+  /**
+   * Adds the ids of the given store that are not contained yet, in their order.
+   */
+  void addAll(PrimitiveIdStore source) {
+    for(int i = 0; i < source.size; i++) {
+      add(source.get(i));
+    }
+    
+    source.newPrimitives.forEach((id, ref) -> {
+      if(!newPrimitives.containsKey(id)) {
+        prepareWrite();
+        newPrimitives.put(id, ref);
+      }
+    });
+  }
+  
+  /**
+   * Removes all given primitives in one pass over the stored ids.
+   *
+   * @return <code>true</code> if anything was removed
+   */
+  boolean removeAll(Collection<? extends OsmPrimitive> primitives) {
+    final BitSet keep = new BitSet(size);
+    keep.set(0, size);
+    
+    for(OsmPrimitive p : primitives) {
+      int index = indexOf(pack(p));
+      
+      if(index >= 0) {
+        keep.clear(index);
+      }
+    }
+    
+    return removeUnkept(keep);
+  }
+  
+  /**
+   * Removes all given packed ids in one pass over the stored ids.
+   *
+   * @return <code>true</code> if anything was removed
+   */
+  boolean removeAll(long[] packedIds) {
+    final BitSet keep = new BitSet(size);
+    keep.set(0, size);
+    
+    for(long packed : packedIds) {
+      int index = indexOf(packed);
+      
+      if(index >= 0) {
+        keep.clear(index);
+      }
+    }
+    
+    return removeUnkept(keep);
+  }
+  
+  private boolean removeUnkept(BitSet keep) {
+    if(keep.cardinality() == size) {
+      return false;
+    }
+    
+    retainAll(keep);
+    
+    return true;
+  }
+  
+  /**
+   * Keeps only the ids at the positions set in the given bit set.
+   *
+   * @return this store
+   */
+  PrimitiveIdStore retainAll(BitSet keep) {
+    prepareWrite();
+    int n = 0;
+    
+    for(int i = 0; i < size; i++) {
+      if(keep.get(i)) {
+        ids[n++] = ids[i];
+      }
+      else {
+        typeCounts[typeOf(ids[i])]--;
+        fingerprint ^= mix(ids[i]);
+        newPrimitives.remove(ids[i]);
+      }
+    }
+    
+    if(n < size) {
+      size = n;
+      rebuildIndex(size);
+    }
+    
+    return this;
+  }
+  
+  void clear() {
+    modCount++;
+    encoded = null;
+    ids = EMPTY;
+    size = 0;
+    table = new int[8];
+    typeCounts = new int[3];
+    newPrimitives = new HashMap<>();
+    fingerprint = 0;
+    reversed = false;
+    shared = false;
+  }
+  
+  void reverse() {
+    reversed = !reversed;
+  }
+  
+  /**
+   * Resolves the stored ids in order against the given data set. Ids of primitives
+   * that are not part of the data set or deleted are skipped.
+   *
+   * @param type the type of the primitives to resolve or <code>-1</code> for all
+   */
+  List<OsmPrimitive> resolve(DataSet ds, int type) {
+    return resolve(ds, type, null);
+  }
+  
+  /**
+   * Like {@link #resolve(DataSet, int)} but reports the progress to the given monitor, if any.
+   *
+   * @return the primitives or <code>null</code> if canceled
+   */
+  List<OsmPrimitive> resolve(DataSet ds, int type, ProgressMonitor monitor) {
+    final List<OsmPrimitive> result = new ArrayList<>(type < 0 ? size : typeCounts[type]);
+    
+    if(ds == null) {
+      return result;
+    }
+    
+    load();
+    boolean uploaded = false;
+    
+    if(monitor != null) {
+      monitor.setTicksCount(size);
+    }
+    
+    for(int i = 0; i < size; i++) {
+      if(monitor != null && (i & 0xFFF) == 0) {
+        if(monitor.isCanceled()) {
+          return null;
+        }
+        
+        monitor.setTicks(i);
+      }
+      
+      final long packed = ids[physical(i)];
+      
+      if(type >= 0 && typeOf(packed) != type) {
+        continue;
+      }
+      
+      OsmPrimitive p = ds.getPrimitiveById(idOf(packed), primitiveTypeOf(typeOf(packed)));
+      
+      if(p == null && packed < 0) {
+        WeakReference<OsmPrimitive> ref = newPrimitives.get(packed);
+        p = ref != null ? ref.get() : null;
+        
+        if(p != null && (p.getDataSet() != ds || p.isNew())) {
+          p = null;
+        }
+        else if(p != null) {
+          uploaded = true;
+        }
+      }
+      
+      if(p != null && !p.isDeleted()) {
+        result.add(p);
+      }
+    }
+    
+    if(uploaded) {
+      updateUploaded();
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Replaces the placeholder ids of new primitives that got a real id by uploading.
+   */
+  void updateUploaded() {
+    if(newPrimitives.values().stream().map(WeakReference::get).allMatch(p -> p != null && p.isNew())) {
+      return;
+    }
+    
+    prepareWrite();
+    boolean changed = false;
+    
+    for(Iterator<Map.Entry<Long, WeakReference<OsmPrimitive>>> it = newPrimitives.entrySet().iterator(); it.hasNext();) {
+      final Map.Entry<Long, WeakReference<OsmPrimitive>> entry = it.next();
+      final OsmPrimitive primitive = entry.getValue().get();
+      
+      if(primitive == null) {
+        it.remove();
+      }
+      else if(!primitive.isNew()) {
+        final int index = arrayIndexOf(entry.getKey());
+        final long packed = pack(primitive);
+        
+        it.remove();
+        
+        if(index >= 0 && arrayIndexOf(packed) < 0) {
+          fingerprint ^= mix(ids[index]) ^ mix(packed);
+          ids[index] = packed;
+          changed = true;
+        }
+      }
+    }
+    
+    if(changed) {
+      rebuildIndex(size);
+    }
+  }
+  
+  /**
+   * Writes the ids of all primitives that are not new. Each id is stored as the zigzag
+   * encoded difference to its predecessor in variable length, so objects that were
+   * selected together mostly take one to three bytes.
+   *
+   * @return the number of nodes, ways and relations written
+   */
+  int[] encode(DataOutput out) throws IOException {
+    load();
+    
+    final int[] counts = new int[3];
+    long last = 0;
+    
+    for(int i = 0; i < size; i++) {
+      final long packed = ids[physical(i)];
+      
+      if(packed >= 0) {
+        writeVarLong(out, zigzag(packed - last));
+        last = packed;
+        counts[typeOf(packed)]++;
+      }
+    }
+    
+    return counts;
+  }
+  
+  private void load() {
+    if(encoded != null) {
+      final ByteBuffer buffer = encoded;
+      final int count = size;
+      
+      encoded = null;
+      size = 0;
+      Arrays.fill(typeCounts, 0);
+      ids = new long[count];
+      
+      long last = 0;
+      
+      for(int i = 0; i < count; i++) {
+        last += unzigzag(readVarLong(buffer));
+        ids[size++] = last;
+        typeCounts[typeOf(last)]++;
+        fingerprint ^= mix(last);
+      }
+      
+      rebuildIndex(size);
+    }
+  }
+  
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+  
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+  
+  static void writeVarLong(DataOutput out, long value) throws IOException {
+    while((value & ~0x7FL) != 0) {
+      out.writeByte((int)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    
+    out.writeByte((int)value);
+  }
+  
+  static long readVarLong(ByteBuffer buffer) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    
+    do {
+      b = buffer.get();
+      value |= (long)(b & 0x7F) << shift;
+      shift += 7;
+    } while((b & 0x80) != 0);
+    
+    return value;
+  }
+}
@@ -0,0 +1,263 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.text.DateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.swing.Timer;
+
+import org.openstreetmap.josm.data.osm.DataSelectionListener;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.event.SelectionEventManager;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Optional history of the last selections of each data set.
+ * <p>
+ * Selection changes that follow each other quickly are combined into one entry. Only
+ * the oldest entry holds a full copy of the selection, every later entry only holds the
+ * ids added and removed compared to the one before. Restoring an entry replays the
+ * changes on a copy of the oldest one, dropping the oldest entry merges its successor
+ * into it.
+ */
+final class SelectionHistory implements DataSelectionListener {
+  static final String PREF_RECORD_SELECTION_HISTORY = "extendedclipboard.recordSelectionHistory";
+  private static final int MAX_ENTRIES = 50;
+  private static final int COMMIT_DELAY = 1000;
+  private static final DateFormat FORMAT_TIME = DateFormat.getTimeInstance(DateFormat.MEDIUM);
+  
+  private static SelectionHistory instance;
+  
+  private final Map<DataSet, Ring> rings = new WeakHashMap<>();
+  private final Timer commitTimer;
+  
+  private final Set<Long> pendingAdded = new LinkedHashSet<>();
+  private final Set<Long> pendingRemoved = new LinkedHashSet<>();
+  private DataSet pendingDataSet;
+  private boolean enabled;
+  
+  private SelectionHistory() {
+    instance = this;
+    commitTimer = new Timer(COMMIT_DELAY, e -> commit());
+    commitTimer.setRepeats(false);
+    setEnabled(Config.getPref().getBoolean(PREF_RECORD_SELECTION_HISTORY, false));
+  }
+  
+  static synchronized void initialize() {
+    if(instance == null) {
+      new SelectionHistory();
+    }
+  }
+  
+  static synchronized SelectionHistory get() {
+    if(instance == null) {
+      initialize();
+    }
+    
+    return instance;
+  }
+  
+  boolean isEnabled() {
+    return enabled;
+  }
+  
+  /**
+   * Starts or stops recording, a stopped history forgets all entries.
+   */
+  void setEnabled(boolean enabled) {
+    Config.getPref().putBoolean(PREF_RECORD_SELECTION_HISTORY, enabled);
+    
+    if(enabled == this.enabled) {
+      return;
+    }
+    
+    this.enabled = enabled;
+    
+    if(enabled) {
+      SelectionEventManager.getInstance().addSelectionListenerForEdt(this);
+    }
+    else {
+      SelectionEventManager.getInstance().removeSelectionListener(this);
+      commitTimer.stop();
+      pendingAdded.clear();
+      pendingRemoved.clear();
+      pendingDataSet = null;
+      rings.clear();
+    }
+  }
+  
+  /**
+   * @return the recorded selections of the data set, the newest first
+   */
+  List<Entry> getEntries(DataSet ds) {
+    commit();
+    
+    final Ring ring = ds != null ? rings.get(ds) : null;
+    
+    if(ring == null) {
+      return Collections.emptyList();
+    }
+    
+    final List<Entry> entries = new ArrayList<>(ring.entries);
+    Collections.reverse(entries);
+    
+    return entries;
+  }
+  
+  @Override
+  public void selectionChanged(SelectionChangeEvent event) {
+    if(event.isNop()) {
+      return;
+    }
+    
+    if(event.getSource() != pendingDataSet) {
+      commit();
+      pendingDataSet = event.getSource();
+    }
+    
+    for(OsmPrimitive p : event.getRemoved()) {
+      final long packed = PrimitiveIdStore.pack(p);
+      
+      if(!pendingAdded.remove(packed)) {
+        pendingRemoved.add(packed);
+      }
+    }
+    
+    for(OsmPrimitive p : event.getAdded()) {
+      final long packed = PrimitiveIdStore.pack(p);
+      
+      if(!pendingRemoved.remove(packed)) {
+        pendingAdded.add(packed);
+      }
+    }
+    
+    commitTimer.restart();
+  }
+  
+  private void commit() {
+    commitTimer.stop();
+    
+    final DataSet ds = pendingDataSet;
+    
+    if(ds != null && (!pendingAdded.isEmpty() || !pendingRemoved.isEmpty())) {
+      final Ring ring = rings.get(ds);
+      
+      if(ring == null) {
+        rings.put(ds, new Ring(ds.getSelected()));
+      }
+      else {
+        ring.add(toArray(pendingAdded), toArray(pendingRemoved), ds.getSelected().size());
+      }
+    }
+    
+    pendingAdded.clear();
+    pendingRemoved.clear();
+    pendingDataSet = null;
+  }
+  
+  private static long[] toArray(Set<Long> ids) {
+    final long[] result = new long[ids.size()];
+    int i = 0;
+    
+    for(long id : ids) {
+      result[i++] = id;
+    }
+    
+    return result;
+  }
+  
+  /**
+   * A recorded selection.
+   */
+  static final class Entry {
+    private final Ring ring;
+    private final long time = System.currentTimeMillis();
+    private final int size;
+    private long[] added;
+    private long[] removed;
+    
+    private Entry(Ring ring, long[] added, long[] removed, int size) {
+      this.ring = ring;
+      this.added = added;
+      this.removed = removed;
+      this.size = size;
+    }
+    
+    /**
+     * @return the ids of the selection or <code>null</code> if the entry was dropped meanwhile
+     */
+    PrimitiveIdStore toStore() {
+      return ring.toStore(this);
+    }
+    
+    @Override
+    public String toString() {
+      return tr("{0} ({1} objects)", FORMAT_TIME.format(new Date(time)), size);
+    }
+  }
+  
+  /**
+   * The full selection of the oldest entry followed by the changes of the later ones.
+   */
+  private static final class Ring {
+    private final PrimitiveIdStore base = new PrimitiveIdStore();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    
+    private Ring(Collection<OsmPrimitive> selection) {
+      selection.forEach(base::add);
+      entries.add(new Entry(this, null, null, base.size()));
+    }
+    
+    private void add(long[] added, long[] removed, int size) {
+      entries.add(new Entry(this, added, removed, size));
+      
+      if(entries.size() > MAX_ENTRIES) {
+        entries.removeFirst();
+        apply(base, entries.getFirst());
+        entries.getFirst().added = null;
+        entries.getFirst().removed = null;
+      }
+    }
+    
+    private PrimitiveIdStore toStore(Entry entry) {
+      final PrimitiveIdStore store = base.view(false);
+      final Iterator<Entry> it = entries.iterator();
+      
+      if(it.next() == entry) {
+        return store;
+      }
+      
+      while(it.hasNext()) {
+        final Entry next = it.next();
+        apply(store, next);
+        
+        if(next == entry) {
+          return store;
+        }
+      }
+      
+      return null;
+    }
+    
+    private void apply(PrimitiveIdStore store, Entry entry) {
+      store.removeAll(entry.removed);
+      
+      for(long packed : entry.added) {
+        store.add(packed);
+      }
+    }
+  }
+}
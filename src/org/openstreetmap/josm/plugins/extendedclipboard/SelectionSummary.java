@@ -0,0 +1,230 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.openstreetmap.josm.data.osm.DataSelectionListener;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.OsmDataManager;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.event.AbstractDatasetChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataChangedEvent;
+import org.openstreetmap.josm.data.osm.event.DataSetListenerAdapter;
+import org.openstreetmap.josm.data.osm.event.DatasetEventManager;
+import org.openstreetmap.josm.data.osm.event.DatasetEventManager.FireMode;
+import org.openstreetmap.josm.data.osm.event.SelectionEventManager;
+import org.openstreetmap.josm.data.osm.event.TagsChangedEvent;
+import org.openstreetmap.josm.data.osm.event.WayNodesChangedEvent;
+
+/**
+ * Counters about the selection of the active data set that are kept up to date
+ * with the added and removed primitives of each selection change.
+ * <p>
+ * Changes of tags or way nodes of selected primitives only mark the summary as
+ * outdated, it is then recounted once on the next query. A changed membership
+ * only recounts the members and only when they are queried.
+ */
+public final class SelectionSummary implements DataSelectionListener, DataSetListenerAdapter.Listener {
+  private static SelectionSummary instance;
+  
+  private final DataSetListenerAdapter dataSetListener = new DataSetListenerAdapter(this);
+  private final List<Tally> tallies = new ArrayList<>();
+  
+  // weak, the summary must not keep the data set of a closed layer alive
+  private WeakReference<DataSet> dataSet;
+  private boolean dirty = true;
+  
+  private int size;
+  
+  private Predicate<OsmPrimitive> membership;
+  private int members;
+  private boolean membersDirty;
+  
+  private SelectionSummary() {
+    instance = this;
+    SelectionEventManager.getInstance().addSelectionListener(this);
+    DatasetEventManager.getInstance().addDatasetListener(dataSetListener, FireMode.IMMEDIATELY);
+  }
+  
+  public static synchronized void initialize() {
+    if(instance == null) {
+      new SelectionSummary();
+    }
+  }
+  
+  public static synchronized SelectionSummary get() {
+    if(instance == null) {
+      initialize();
+    }
+    
+    return instance;
+  }
+  
+  /**
+   * Additional counter that is kept up to date together with the summary.
+   */
+  public abstract static class Tally {
+    /**
+     * Called before the selection is counted from scratch.
+     */
+    protected abstract void reset();
+    
+    /**
+     * Called with <code>1</code> for a primitive added to and <code>-1</code>
+     * for a primitive removed from the selection.
+     */
+    protected abstract void count(OsmPrimitive p, int delta);
+  }
+  
+  public synchronized void addTally(Tally tally) {
+    tallies.add(tally);
+    dirty = true;
+  }
+  
+  /**
+   * Sets the predicate that defines the objects of which the selected ones are
+   * counted as members, e.g. the objects of the selected clipboard.
+   *
+   * @param membership the predicate or <code>null</code> for no members
+   */
+  public synchronized void setMembership(Predicate<OsmPrimitive> membership) {
+    this.membership = membership;
+    membersDirty = true;
+  }
+  
+  /**
+   * Recounts the members on the next query, needed if the objects accepted by
+   * the membership predicate changed.
+   */
+  public synchronized void invalidateMembers() {
+    membersDirty = true;
+  }
+  
+  /**
+   * Forces a full recount on the next query, needed if the result of a
+   * membership predicate or a tally changed without a selection change.
+   */
+  public synchronized void invalidate() {
+    dirty = true;
+  }
+  
+  /**
+   * Recounts the selection if it is outdated.
+   */
+  public synchronized void validate() {
+    final DataSet active = OsmDataManager.getInstance().getActiveDataSet();
+    
+    // a counted data set that is gone is recounted as well
+    if(dirty || active != getDataSet() || (active == null && dataSet != null)) {
+      recount(active);
+    }
+  }
+  
+  private void validateMembers() {
+    validate();
+    
+    if(membersDirty) {
+      membersDirty = false;
+      members = 0;
+      
+      final DataSet ds = getDataSet();
+      
+      if(membership != null && ds != null) {
+        for(OsmPrimitive p : ds.getSelected()) {
+          if(membership.test(p)) {
+            members++;
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * @return the counted data set or <code>null</code> if there is none or it is gone
+   */
+  private DataSet getDataSet() {
+    return dataSet != null ? dataSet.get() : null;
+  }
+  
+  private void recount(DataSet active) {
+    dataSet = active != null ? new WeakReference<>(active) : null;
+    dirty = false;
+    
+    size = 0;
+    members = 0;
+    membersDirty = false;
+    tallies.forEach(Tally::reset);
+    
+    count(active != null ? active.getSelected() : Collections.emptySet(), 1);
+  }
+  
+  private void count(Collection<OsmPrimitive> primitives, int delta) {
+    for(OsmPrimitive p : primitives) {
+      size += delta;
+      
+      if(!membersDirty && membership != null && membership.test(p)) {
+        members += delta;
+      }
+      
+      for(Tally tally : tallies) {
+        tally.count(p, delta);
+      }
+    }
+  }
+  
+  @Override
+  public synchronized void selectionChanged(SelectionChangeEvent event) {
+    if(!dirty && !event.isNop()) {
+      if(event.getSource() != getDataSet()) {
+        dirty = true;
+      }
+      else {
+        count(event.getRemoved(), -1);
+        count(event.getAdded(), 1);
+      }
+    }
+  }
+  
+  @Override
+  public synchronized void processDatasetEvent(AbstractDatasetChangedEvent event) {
+    if(dirty || event.getDataset() != getDataSet()) {
+      return;
+    }
+    
+    if(event instanceof DataChangedEvent) {
+      dirty = true;
+    }
+    else if(event instanceof TagsChangedEvent) {
+      dirty = ((TagsChangedEvent)event).getPrimitive().isSelected();
+    }
+    else if(event instanceof WayNodesChangedEvent) {
+      dirty = ((WayNodesChangedEvent)event).getChangedWay().isSelected();
+    }
+  }
+  
+  public synchronized int getSize() {
+    validate();
+    return size;
+  }
+  
+  /**
+   * @return <code>true</code> if all selected objects are members
+   */
+  public synchronized boolean isSelectionMember() {
+    validateMembers();
+    return members == size;
+  }
+  
+  /**
+   * @return <code>true</code> if at least one selected object is a member
+   */
+  public synchronized boolean isAnySelectedMember() {
+    validateMembers();
+    return members > 0;
+  }
+}
@@ -1,18 +1,17 @@
 package org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist;
 
 import java.awt.Component;
-import java.awt.Graphics;
-import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.Action;
 import javax.swing.ImageIcon;
-import javax.swing.SwingUtilities;
 
 import org.openstreetmap.josm.command.ChangePropertyCommand;
 import org.openstreetmap.josm.command.Command;
@@ -22,9 +21,7 @@ import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.osm.TagMap;
 import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.gui.MainApplication;
-import org.openstreetmap.josm.gui.tagging.presets.TaggingPreset;
-import org.openstreetmap.josm.tools.ImageProvider;
-import org.openstreetmap.josm.tools.ImageResource;
+import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.tools.ImageProvider.ImageSizes;
 
 public class NodeTemplate {
@@ -38,8 +35,10 @@ public class NodeTemplate {
   private String id;
   private String name;
   private String iconName;
-  private ImageIcon icon;
-  private ImageIcon iconBig;
+  private volatile ImageIcon icon;
+  private volatile ImageIcon iconBig;
+  private volatile CompletableFuture<Void> iconTask;
+  private volatile boolean iconPrioritized;
   
   private boolean forWays;
   private boolean forClosedWays;
@@ -50,6 +49,10 @@ public class NodeTemplate {
   private Map<String, String> ctrl;
   private Map<String, String> shift;
   
+  private static final AtomicInteger MODIFICATION_COUNT = new AtomicInteger();
+  
+  private volatile NodeTemplateMatcher matcher;
+  
   public NodeTemplate(String id, String name, String iconName, Map<String, String> map, boolean forWays, boolean forClosedWays, boolean notForNodes, boolean onlyForUntaggedObjects) {
     this.name = name;
     this.id = id == null ? System.currentTimeMillis()+name+((int)(Math.random()*1000)) : id;
@@ -76,14 +79,17 @@ public class NodeTemplate {
   
   void setMap(Map<String, String> map) {
     this.map = map;
+    invalidateMatcher();
   }
   
   void setCtrl(Map<String, String> ctrl) {
     this.ctrl = ctrl;
+    invalidateMatcher();
   }
   
   void setShift(Map<String, String> shift) {
     this.shift = shift;
+    invalidateMatcher();
   }
   
   void setName(String name) {
@@ -152,6 +158,7 @@ public class NodeTemplate {
   
   public void setOnlyForUntaggedObjects(boolean onlyForUntaggedObjects) {
     this.onlyForUntaggedObjects = onlyForUntaggedObjects;
+    invalidateMatcher();
   }
   
   public boolean isOnlyForUntaggedObjects() {
@@ -160,6 +167,7 @@ public class NodeTemplate {
   
   public void setNotForNodes(boolean notForNodes) {
     this.notForNodes = notForNodes;
+    invalidateMatcher();
   }
   
   public boolean isNotForNodes() {
@@ -168,6 +176,7 @@ public class NodeTemplate {
   
   public void setForWays(boolean value) {
     forWays = value;
+    invalidateMatcher();
   }
   
   public boolean isForWays() {
@@ -176,6 +185,7 @@ public class NodeTemplate {
   
   public void setForClosedWays(boolean value) {
     forClosedWays = value;
+    invalidateMatcher();
   }
   
   public String getId() {
@@ -198,63 +208,47 @@ public class NodeTemplate {
     return (!map.isEmpty() || !ctrl.isEmpty() || !shift.isEmpty()) && (tagging || !isNotForNodes());
   }
   
-  public boolean isCompatible(OsmPrimitive p) {      
-    return ((p instanceof Way && ((!((Way)p).isClosed() && forWays) || ((Way)p).isClosed() && forClosedWays)) || (p instanceof Node && !notForNodes)) && (!onlyForUntaggedObjects || onlyMatchingTags(p));
+  private void invalidateMatcher() {
+    matcher = null;
+    MODIFICATION_COUNT.incrementAndGet();
+  }
+  
+  /**
+   * @return a counter that changes whenever the matching rules of any template change
+   */
+  static int getModificationCount() {
+    return MODIFICATION_COUNT.get();
   }
   
-  private boolean onlyMatchingTags(OsmPrimitive p) {
-    boolean result = !p.hasKeys();
+  NodeTemplateMatcher getMatcher() {
+    NodeTemplateMatcher result = matcher;
     
-    if(!result) {
-      if(p.getNumKeys() == map.size() || p.getNumKeys() == (map.size() + ctrl.size()) || p.getNumKeys() == (map.size() + shift.size())) {
-        result = true;
-        
-        for(String key : map.keySet()) {
-          if(!p.hasTag(key, map.get(key))) {
-            result = false;
-            break;
-          }
-        }
-        
-        if(result && p.getNumKeys() != map.size()) {
-          boolean hasShiftTag = false;
-          boolean shiftComplete = true;
-          boolean hasCtrlTag = false;
-          boolean ctrlComplete = true;
-        
-          if(!shift.isEmpty()) {
-            for(String key : shift.keySet()) {
-              if(p.hasTag(key, shift.get(key))) {
-                hasShiftTag = true;
-              }
-              else {
-                shiftComplete = false;
-              }
-            }
-          }
-          
-          if(!ctrl.isEmpty()) {
-            for(String key : ctrl.keySet()) {
-              if(p.hasTag(key, ctrl.get(key))) {
-                hasCtrlTag = true;
-              }
-              else {
-                ctrlComplete = false;
-              }
-            }
-          }
-          
-          result = (!hasShiftTag && hasCtrlTag && ctrlComplete && p.getNumKeys() == (map.size() + ctrl.size())) || 
-              (!hasCtrlTag && hasShiftTag && shiftComplete && p.getNumKeys() == (map.size() + shift.size()));
-        }
-      }
+    if(result == null) {
+      result = new NodeTemplateMatcher(map, ctrl, shift, !notForNodes, forWays, forClosedWays, onlyForUntaggedObjects);
+      matcher = result;
     }
     
     return result;
   }
   
+  public boolean isCompatible(OsmPrimitive p) {
+    return getMatcher().isCompatible(p);
+  }
+  
   public ArrayList<Command> createChangeCommand(final OsmPrimitive p, boolean ctrl, boolean shift, final AtomicBoolean found, boolean deactivateAutoTaggingIfNotCompatible) {
     ArrayList<Command> cmds = new ArrayList<>();
+    
+    createTagChanges(p, ctrl, shift, found, deactivateAutoTaggingIfNotCompatible).forEach((key, value) -> cmds.add(new ChangePropertyCommand(p, key, value)));
+    
+    return cmds;
+  }
+  
+  /**
+   * Collects the tag changes this template would apply to the given primitive.
+   * A <code>null</code> value means the tag is removed.
+   */
+  public LinkedHashMap<String, String> createTagChanges(final OsmPrimitive p, boolean ctrl, boolean shift, final AtomicBoolean found, boolean deactivateAutoTaggingIfNotCompatible) {
+    LinkedHashMap<String, String> changes = new LinkedHashMap<>();
     found.set(found.get() || (deactivateAutoTaggingIfNotCompatible && Objects.equals(MainApplication.getMap().mapModeDraw.getValue("active"), Boolean.TRUE) && (p instanceof Node) && !p.hasKeys()));
 
     if(isCompatible(p)) {
@@ -262,7 +256,7 @@ public class NodeTemplate {
       
       map.forEach((key, value) -> {
         if(!p.hasTag(key, value)) {
-          cmds.add(new ChangePropertyCommand(p, key, value));
+          changes.put(key, value);
         }
       });
       
@@ -286,10 +280,10 @@ public class NodeTemplate {
         }
       });
       
-      ctrlShiftMap.forEach((key,value) -> cmds.add(new ChangePropertyCommand(p, key, value)));
+      changes.putAll(ctrlShiftMap);
     }
     
-    return cmds;
+    return changes;
   }
   
   private void internalAddIconToAction(Action a, boolean enabled) {
@@ -299,120 +293,48 @@ public class NodeTemplate {
   }
   
   public void addIconToAction(Action a, boolean enabled) {
-    if(wait != null && wait.isAlive()) {
-      new Thread() {
-        public void run() {
-          while(wait.isAlive()) {
-            try {
-              Thread.sleep(100);
-            } catch (InterruptedException e) {}
-          }
-          
-          SwingUtilities.invokeLater(() -> {
-            internalAddIconToAction(a, enabled);
-          });
-        };
-      }.start();
+    final CompletableFuture<Void> task = iconTask;
+    
+    if(task != null && !task.isDone()) {
+      task.thenRun(() -> GuiHelper.runInEDT(() -> internalAddIconToAction(a, enabled)));
     }
     else {
       internalAddIconToAction(a, enabled);
     }
   }
   
-  private Thread wait;
+  /**
+   * Moves the loading of the icon ahead of the icons of invisible templates, the
+   * component is repainted when the icon is loaded.
+   */
+  void prioritizeIcon(Component c) {
+    final CompletableFuture<Void> task = iconTask;
+    
+    if(task != null && !task.isDone() && !iconPrioritized) {
+      iconPrioritized = true;
+      TemplateIconLoader.get().load(iconName, ImageSizes.SMALLICON, TemplateIconLoader.PRIORITY_VISIBLE);
+      TemplateIconLoader.get().load(iconName, ImageSizes.LARGEICON, TemplateIconLoader.PRIORITY_VISIBLE);
+      task.thenRun(c::repaint);
+    }
+  }
   
   private void loadIcon() {
-    if(iconName != null) {
-      try {
-        final TaggingPreset dummy = new TaggingPreset();
-        dummy.setIcon(iconName);
-        
-        wait = new Thread() {
-          @Override
-          public void run() {
-            int time = 2000;
-            
-            while(dummy.getValue("ImageResource") == null && (time-=100) > 0) {
-              try {
-                sleep(100);
-              } catch (InterruptedException e) {
-                // ignore intentionally
-              }
-            }
-            
-            ImageResource ir = (ImageResource)dummy.getValue("ImageResource");
-            
-            if(ir != null) {
-              final ImageIcon i = ir.getImageIcon(ImageSizes.SMALLICON.getImageDimension());
-              
-              if(i != null) {
-                icon = new ImageIcon() {
-                  @Override
-                  public int getIconWidth() {
-                    return ImageSizes.SMALLICON.getAdjustedWidth();
-                  }
-                  
-                  @Override
-                  public int getIconHeight() {
-                    return ImageSizes.SMALLICON.getAdjustedHeight();
-                  }
-                  
-                  @Override
-                  public synchronized void paintIcon(Component c, Graphics g, int x, int y) {
-                    x += getIconWidth()/2 - i.getIconWidth()/2;
-                    y += getIconHeight()/2 - i.getIconHeight()/2;
-                    
-                    i.paintIcon(c, g, x, y);
-                  }
-                };
-               
-                
-                final ImageIcon iBig = ir.getImageIcon(ImageSizes.LARGEICON.getImageDimension());
-                final ImageIcon node = ImageProvider.get("data/node", ImageSizes.SMALLICON);
-                
-                iconBig = new ImageIcon() {
-                  @Override
-                  public int getIconWidth() {
-                    return ImageSizes.LARGEICON.getAdjustedWidth();
-                  }
-                  
-                  @Override
-                  public int getIconHeight() {
-                    return ImageSizes.LARGEICON.getAdjustedHeight();
-                  }
-                  
-                  @Override
-                  public synchronized void paintIcon(Component c, Graphics g, int x, int y) {
-                    int xOld = x;
-                    int yOld = y;
-                    
-                    x += getIconWidth()/2 - iBig.getIconWidth()/2;
-                    y += getIconHeight()/2 - iBig.getIconHeight()/2;
-                    iBig.paintIcon(c, g, x, y);
-                    
-                    xOld += getIconWidth();
-                    yOld += getIconHeight();
-                    
-                    xOld -= node.getIconWidth()*3/4;
-                    yOld -= node.getIconHeight()*3/4;
-                    
-                    node.paintIcon(c, g, xOld, yOld);
-                  }
-                };
-
-                BufferedImage iconImage = new BufferedImage(icon.getIconWidth(), icon.getIconHeight(), BufferedImage.TYPE_INT_ARGB);
-                icon.paintIcon(null, iconImage.getGraphics(), 0, 0);
-                icon = new ImageIcon(iconImage);
-                
-                iconImage = new BufferedImage(iconBig.getIconWidth(), iconBig.getIconHeight(), BufferedImage.TYPE_INT_ARGB);
-                iconBig.paintIcon(null, iconImage.getGraphics(), 0, 0);
-                iconBig = new ImageIcon(iconImage);
-              }
-            }
-          }
-        };
-        wait.start();
-      }catch(Exception e2) {}
+    final String name = iconName;
+    iconPrioritized = false;
+    
+    if(name != null) {
+      final CompletableFuture<ImageIcon> small = TemplateIconLoader.get().load(name, ImageSizes.SMALLICON, TemplateIconLoader.PRIORITY_BACKGROUND);
+      final CompletableFuture<ImageIcon> big = TemplateIconLoader.get().load(name, ImageSizes.LARGEICON, TemplateIconLoader.PRIORITY_BACKGROUND);
+      
+      iconTask = small.thenAcceptBoth(big, (i, iBig) -> {
+        if(name.equals(iconName) && i != null) {
+          icon = i;
+          iconBig = iBig;
+        }
+      });
+    }
+    else {
+      iconTask = null;
     }
   }
   
@@ -435,7 +357,11 @@ public class NodeTemplate {
   }
 
   public Node createNode(boolean ctrl, boolean shift) {
-    Node node = new Node(new EastNorth(0, 0));
+    return createNode(new EastNorth(0, 0), ctrl, shift);
+  }
+  
+  public Node createNode(EastNorth position, boolean ctrl, boolean shift) {
+    Node node = new Node(position);
     node.setKeys(map);
     
     if(ctrl && !shift) {
@@ -0,0 +1,92 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+
+/**
+ * Inverted index from primitive type and tags to the node templates that are only for
+ * untagged objects, found by one of the tags a tagged primitive needs to match them.
+ */
+final class NodeTemplateIndex {
+  static final int TYPE_COUNT = 3;
+  
+  private final List<Map<String, Map<String, List<NodeTemplate>>>> byTag;
+  
+  NodeTemplateIndex(Collection<NodeTemplate> templates) {
+    byTag = new ArrayList<>(TYPE_COUNT);
+    
+    for(int i = 0; i < TYPE_COUNT; i++) {
+      byTag.add(new HashMap<>());
+    }
+    
+    for(NodeTemplate t : templates) {
+      if(t == NodeTemplateList.SEPARATOR) {
+        continue;
+      }
+      
+      final NodeTemplateMatcher matcher = t.getMatcher();
+      
+      if(!matcher.isOnlyForUntaggedObjects()) {
+        continue;
+      }
+      
+      for(int i = 0; i < TYPE_COUNT; i++) {
+        if((matcher.getTypeMask() & (1 << i)) != 0) {
+          final Map<String, Map<String, List<NodeTemplate>>> tags = byTag.get(i);
+          
+          matcher.forEachAnchorTag((key, value) -> {
+            final List<NodeTemplate> candidates = tags.computeIfAbsent(key, k -> new HashMap<>()).computeIfAbsent(value, v -> new ArrayList<>(1));
+            
+            if(!candidates.contains(t)) {
+              candidates.add(t);
+            }
+          });
+        }
+      }
+    }
+  }
+  
+  /**
+   * @return the index of the type of the primitive or <code>-1</code> if no template can be applied to it
+   */
+  static int typeIndexOf(OsmPrimitive p) {
+    final int type = NodeTemplateMatcher.typeOf(p);
+    
+    return type != 0 ? Integer.numberOfTrailingZeros(type) : -1;
+  }
+  
+  /**
+   * Reports the templates only for untagged objects that are compatible to the given
+   * tagged primitive through one of its tags. Templates for any tags and untagged
+   * primitives are left to the caller, they only depend on the type.
+   */
+  void forEachTagMatch(OsmPrimitive p, Consumer<NodeTemplate> consumer) {
+    final int i = typeIndexOf(p);
+    
+    if(i < 0 || !p.hasKeys() || byTag.get(i).isEmpty()) {
+      return;
+    }
+    
+    final Map<String, Map<String, List<NodeTemplate>>> tags = byTag.get(i);
+    
+    p.visitKeys((primitive, key, value) -> {
+      final Map<String, List<NodeTemplate>> values = tags.get(key);
+      final List<NodeTemplate> candidates = values != null ? values.get(value) : null;
+      
+      if(candidates != null) {
+        for(NodeTemplate t : candidates) {
+          if(t.getMatcher().isCompatible(p)) {
+            consumer.accept(t);
+          }
+        }
+      }
+    });
+  }
+}
@@ -4,7 +4,7 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 
 import java.awt.event.ActionEvent;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -23,17 +23,21 @@ import javax.swing.JMenuItem;
 import javax.swing.JToolBar;
 import javax.swing.SwingUtilities;
 
+import org.openstreetmap.josm.command.AddCommand;
+import org.openstreetmap.josm.data.UndoRedoHandler;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmDataManager;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.data.osm.Tag;
-import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.datatransfer.ClipboardUtils;
 import org.openstreetmap.josm.gui.datatransfer.OsmTransferHandler;
 import org.openstreetmap.josm.gui.datatransfer.PrimitiveTransferable;
 import org.openstreetmap.josm.gui.datatransfer.data.PrimitiveTransferData;
 import org.openstreetmap.josm.gui.tagging.presets.TaggingPreset;
+import org.openstreetmap.josm.plugins.extendedclipboard.SelectionSummary;
 import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.ImageProvider;
 
@@ -45,6 +49,7 @@ public class NodeTemplateList {
   private static final String PREF_KEY_KEYS = "NodeTemplateListDialog.nodeTemplates.keys";
   private static final String PREF_KEY_CTRL_KEYS = "NodeTemplateListDialog.nodeTemplates.keysCtrl";
   private static final String PREF_KEY_SHIFT_KEYS = "NodeTemplateListDialog.nodeTemplates.keysShift";
+  static final String PREF_KEY_PASTE_THROUGH_CLIPBOARD = "NodeTemplateListDialog.nodeTemplates.pasteThroughClipboard";
   
   private static final String SEPARATOR_NAME = ";;;";
   private static final String SEPARATOR_ICON = "###";
@@ -59,6 +64,10 @@ public class NodeTemplateList {
   private final HashMap<NodeTemplate, NodeTemplateMenuItem> quickAccessMenuItemMap;
   private NodeTemplateListDialog dialog;
   
+  private NodeTemplateIndex index;
+  private int indexModificationCount;
+  private final ApplicableTally applicable = new ApplicableTally();
+  
   private NodeTemplateList() {
     instance = this;
     list = new LinkedList<>();
@@ -69,16 +78,23 @@ public class NodeTemplateList {
     quickAccessMenu = new JMenu(tr("Node Template List"));
     quickAccessMenu.setIcon(ImageProvider.get("dialogs/nodes"));
     
-    MainApplication.getMenu().presetsMenu.add(quickAccessMenu,3);
-    MainApplication.getMenu().presetsMenu.insertSeparator(3);
+    if(MainApplication.getMenu() != null) {
+      MainApplication.getMenu().presetsMenu.add(quickAccessMenu,3);
+      MainApplication.getMenu().presetsMenu.insertSeparator(3);
+    }
     
     load();
+    SelectionSummary.get().addTally(applicable);
   }
   
   public void setDialog(NodeTemplateListDialog dialog) {
     this.dialog = dialog;
   }
   
+  NodeTemplateListDialog getDialog() {
+    return dialog;
+  }
+  
   public static synchronized void initialize() {
     if(instance == null) {
       new NodeTemplateList();
@@ -104,6 +120,7 @@ public class NodeTemplateList {
   
   void add(NodeTemplate t) {
     list.add(t);
+    index = null;
     addQuickAccess(t);
   }
   
@@ -131,6 +148,7 @@ public class NodeTemplateList {
   
   void nodeTemplateDeleted(NodeTemplate t) {
     list.remove(t);
+    index = null;
     NodeTemplateMenuItem item = quickAccessMenuItemMap.remove(t);
     
     if(item != null) {
@@ -142,21 +160,106 @@ public class NodeTemplateList {
     }
   }
   
-  private boolean isItemEnabled(NodeTemplateMenuItem item, Collection<OsmPrimitive> selection) {
-    return !item.t.isNotForNodes() || ((item.t.isForWays() && selection.stream().filter(w -> w instanceof Way && !((Way)w).isClosed()).count() > 0 || item.t.isForClosedWays() && selection.stream().filter(w -> w instanceof Way && ((Way)w).isClosed()).count() > 0) && (!item.t.isOnlyForUntaggedObjects() || selection.stream().filter(p -> !p.hasKeys()).count() > 0));
+  private NodeTemplateIndex getIndex() {
+    if(index == null || indexModificationCount != NodeTemplate.getModificationCount()) {
+      indexModificationCount = NodeTemplate.getModificationCount();
+      index = new NodeTemplateIndex(list);
+    }
+    
+    return index;
+  }
+  
+  private void updateApplicable() {
+    if(getIndex() != applicable.countedIndex) {
+      SelectionSummary.get().invalidate();
+    }
+    
+    SelectionSummary.get().validate();
+  }
+  
+  /**
+   * @return <code>true</code> if nothing is selected or the given template is compatible to at least one of the selected objects
+   */
+  boolean isApplicableToSelection(NodeTemplate t) {
+    updateApplicable();
+    
+    return SelectionSummary.get().getSize() == 0 || applicable.contains(t);
+  }
+  
+  private boolean isItemEnabled(NodeTemplateMenuItem item) {
+    return !item.t.isNotForNodes() || applicable.contains(item.t);
   }
   
-  private boolean isItemEabledForNodes(NodeTemplateMenuItem item, Collection<OsmPrimitive> selection) {
-    return item.t.isNotForNodes() || (!item.t.isNotForNodes() && selection.stream().filter(p -> p instanceof Node).count() > 0);
+  private boolean isItemEabledForNodes(NodeTemplateMenuItem item) {
+    return item.t.isNotForNodes() || applicable.contains(item.t);
+  }
+  
+  /**
+   * Selected objects per type and number of selected tagged objects each template only for
+   * untagged objects is compatible to, kept up to date by the {@link SelectionSummary}.
+   * <p>
+   * The other templates only depend on the type of an object, so a change of the selection
+   * costs the same for any number of templates.
+   */
+  private final class ApplicableTally extends SelectionSummary.Tally {
+    private final int[] selected = new int[NodeTemplateIndex.TYPE_COUNT];
+    private final int[] untagged = new int[NodeTemplateIndex.TYPE_COUNT];
+    private final HashMap<NodeTemplate, int[]> counts = new HashMap<>();
+    private NodeTemplateIndex countedIndex;
+    
+    @Override
+    protected void reset() {
+      Arrays.fill(selected, 0);
+      Arrays.fill(untagged, 0);
+      counts.clear();
+      countedIndex = getIndex();
+    }
+    
+    @Override
+    protected void count(OsmPrimitive p, int delta) {
+      final int i = NodeTemplateIndex.typeIndexOf(p);
+      
+      if(countedIndex == null || i < 0) {
+        return;
+      }
+      
+      selected[i] += delta;
+      
+      if(!p.hasKeys()) {
+        untagged[i] += delta;
+      }
+      else {
+        countedIndex.forEachTagMatch(p, t -> counts.computeIfAbsent(t, k -> new int[1])[0] += delta);
+      }
+    }
+    
+    private boolean contains(NodeTemplate t) {
+      if(t == SEPARATOR) {
+        return false;
+      }
+      
+      final NodeTemplateMatcher matcher = t.getMatcher();
+      final int[] byType = matcher.isOnlyForUntaggedObjects() ? untagged : selected;
+      
+      for(int i = 0; i < NodeTemplateIndex.TYPE_COUNT; i++) {
+        if((matcher.getTypeMask() & (1 << i)) != 0 && byType[i] > 0) {
+          return true;
+        }
+      }
+      
+      final int[] count = counts.get(t);
+      
+      return count != null && count[0] > 0;
+    }
   }
   
   void updateQuickMenuItemsEnabledState() {
     if(OsmDataManager.getInstance().getActiveDataSet() != null) {
-      Collection<OsmPrimitive> selection = OsmDataManager.getInstance().getActiveDataSet().getSelected();
+      updateApplicable();
       
       quickAccessMenuItemMap.forEach((k,item) -> {      
-        item.getAction().setEnabled(isItemEnabled(item, selection));
-        item.setEnabled(item.getAction().isEnabled() && isItemEabledForNodes(item, selection));
+        item.getAction().setEnabled(isItemEnabled(item));
+        item.setEnabled(item.getAction().isEnabled() && isItemEabledForNodes(item));
       });
     }
   }
@@ -165,22 +268,24 @@ public class NodeTemplateList {
     NodeTemplateMenuItem item = quickAccessMenuItemMap.get(t);
     
     if(item != null) {
-      Collection<OsmPrimitive> selection = OsmDataManager.getInstance().getActiveDataSet().getSelected();
+      updateApplicable();
       
-      t.addIconToAction(item.getAction(), isItemEnabled(item, selection));
-      item.setEnabled(item.getAction().isEnabled() && isItemEabledForNodes(item, selection));
+      t.addIconToAction(item.getAction(), isItemEnabled(item));
+      item.setEnabled(item.getAction().isEnabled() && isItemEabledForNodes(item));
     }
   }
   
   void setList(List<NodeTemplate> list) {
     this.list.clear();
     this.list.addAll(list);
+    index = null;
     
     rebuildQuickAccessMenu();
   }
   
   void updateList(List<DefaultListModel<NodeTemplate>> models) {
     list.clear();
+    index = null;
     
     for(DefaultListModel<NodeTemplate> model : models) {
       for(int i = 0; i < model.size(); i++) {
@@ -355,10 +460,33 @@ public class NodeTemplateList {
   
   void paste(NodeTemplate t, ActionEvent e) {
     if(t != null && !t.isNotForNodes()) {
-      PrimitiveTransferable node = new PrimitiveTransferable(PrimitiveTransferData.getDataWithReferences(Collections.singleton(t.createNode((e.getModifiers() & ActionEvent.CTRL_MASK) == ActionEvent.CTRL_MASK, (e.getModifiers() & ActionEvent.SHIFT_MASK) == ActionEvent.SHIFT_MASK))));
-      ClipboardUtils.copy(node);
+      final boolean ctrl = (e.getModifiers() & ActionEvent.CTRL_MASK) == ActionEvent.CTRL_MASK;
+      final boolean shift = (e.getModifiers() & ActionEvent.SHIFT_MASK) == ActionEvent.SHIFT_MASK;
+      
+      if(Config.getPref().getBoolean(PREF_KEY_PASTE_THROUGH_CLIPBOARD, false)) {
+        PrimitiveTransferable node = new PrimitiveTransferable(PrimitiveTransferData.getDataWithReferences(Collections.singleton(t.createNode(ctrl, shift))));
+        ClipboardUtils.copy(node);
+        
+        transferHandler.pasteOn(MainApplication.getLayerManager().getEditLayer(), MainApplication.getMap().mapView.getCenter(), node);
+      }
+      else {
+        stamp(t, MainApplication.getMap().mapView.getCenter(), ctrl, shift);
+      }
+    }
+  }
+  
+  /**
+   * Adds a new node of the template to the edit layer and selects it, without using the
+   * system clipboard.
+   */
+  void stamp(NodeTemplate t, EastNorth position, boolean ctrl, boolean shift) {
+    final DataSet ds = MainApplication.getLayerManager().getEditDataSet();
+    
+    if(ds != null) {
+      final Node node = t.createNode(position, ctrl, shift);
       
-      transferHandler.pasteOn(MainApplication.getLayerManager().getEditLayer(), MainApplication.getMap().mapView.getCenter(), node);
+      UndoRedoHandler.getInstance().add(new AddCommand(ds, node));
+      ds.setSelected(node);
     }
   }
   
@@ -65,6 +65,7 @@ import javax.swing.event.PopupMenuListener;
 
 import org.openstreetmap.josm.actions.AbstractPasteAction;
 import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.command.ChangePropertyCommand;
 import org.openstreetmap.josm.command.Command;
 import org.openstreetmap.josm.command.SelectCommand;
 import org.openstreetmap.josm.command.SequenceCommand;
@@ -488,9 +489,10 @@ public class NodeTemplateListDialog extends ToggleDialog implements DataSelectio
             }
             else {
               label.setIcon(null);
+              t.prioritizeIcon(list);
             }
             
-            label.setEnabled(t.isEnabled(wayTaggingPossible));
+            label.setEnabled(t.isEnabled(wayTaggingPossible) && (!t.isNotForNodes() || NodeTemplateList.get().isApplicableToSelection(t)));
           }
           
           return label;
@@ -940,6 +942,13 @@ public class NodeTemplateListDialog extends ToggleDialog implements DataSelectio
             item.setSelected(Config.getPref().getBoolean(PREF_KEY_TAG_SELECTION, true));
             item.addActionListener(a -> Config.getPref().putBoolean(PREF_KEY_TAG_SELECTION, !Config.getPref().getBoolean(PREF_KEY_TAG_SELECTION, true)));
             
+            prefMenu.add(item);
+            
+            item = new JCheckBoxMenuItem(tr("Paste new nodes through the system clipboard"));
+            item.setToolTipText(tr("Replaces the content of the system clipboard with the new node"));
+            item.setSelected(Config.getPref().getBoolean(NodeTemplateList.PREF_KEY_PASTE_THROUGH_CLIPBOARD, false));
+            item.addActionListener(a -> Config.getPref().putBoolean(NodeTemplateList.PREF_KEY_PASTE_THROUGH_CLIPBOARD, !Config.getPref().getBoolean(NodeTemplateList.PREF_KEY_PASTE_THROUGH_CLIPBOARD, false)));
+            
             prefMenu.add(item);
             prefMenu.addSeparator();
             
@@ -1265,7 +1274,7 @@ public class NodeTemplateListDialog extends ToggleDialog implements DataSelectio
     return false;
   }
   
-  private NodeTemplate getSelectedTemplate() {
+  NodeTemplate getSelectedTemplate() {
     for(JList<NodeTemplate> list : nodeLists) {
       if(list.getSelectedIndex() != -1) {
         return list.getSelectedValue();
@@ -1685,22 +1694,21 @@ public class NodeTemplateListDialog extends ToggleDialog implements DataSelectio
     
     if(((autoTagSelection.isVisible() && autoTagSelection.isSelected()) || selectionTag) && !autoTagDisabled) {
       if(!selection.isEmpty()) {
-        selection.forEach(p -> {
+        // group changes by key and value, so the whole selection is tagged with one undoable command
+        final LinkedHashMap<String, LinkedHashMap<String, ArrayList<OsmPrimitive>>> changes = new LinkedHashMap<>();
+        boolean foundAny = false;
+        
+        for(OsmPrimitive p : selection) {
           final AtomicBoolean found = new AtomicBoolean();
           
           if(t != null) {
-            final ArrayList<Command> cmds = t.createChangeCommand(p, ctrl, shift, found, deactivateAutoTaggingIfNotCompatible);
+            t.createTagChanges(p, ctrl, shift, found, deactivateAutoTaggingIfNotCompatible).forEach((key, value) -> 
+              changes.computeIfAbsent(key, k -> new LinkedHashMap<>()).computeIfAbsent(value, v -> new ArrayList<>()).add(p)
+            );
             
             if(found.get()) {
               timer = Config.getPref().getInt(PREF_KEY_SELECTION_AUTO_OFF, 10) * 1000 + 500;
-            }
-            
-            if(!cmds.isEmpty()) {
-              if(clearSelection && found.get() && !Objects.equals(MainApplication.getMap().mapModeDraw.getValue("active"), Boolean.TRUE)) {
-                cmds.add(new ClearSelectionCommand());
-              }
-              
-              UndoRedoHandler.getInstance().add(new SequenceCommand("add template to selection", cmds));
+              foundAny = true;
             }
           }
           
@@ -1708,7 +1716,19 @@ public class NodeTemplateListDialog extends ToggleDialog implements DataSelectio
             autoTagSelection.setSelected(false);
             timer = 0;
           }
-        });
+        }
+        
+        if(!changes.isEmpty()) {
+          final ArrayList<Command> cmds = new ArrayList<>();
+          
+          changes.forEach((key, values) -> values.forEach((value, primitives) -> cmds.add(new ChangePropertyCommand(primitives, key, value))));
+          
+          if(clearSelection && foundAny && !Objects.equals(MainApplication.getMap().mapModeDraw.getValue("active"), Boolean.TRUE)) {
+            cmds.add(new ClearSelectionCommand());
+          }
+          
+          UndoRedoHandler.getInstance().add(new SequenceCommand("add template to selection", cmds));
+        }
       }
     }
   }
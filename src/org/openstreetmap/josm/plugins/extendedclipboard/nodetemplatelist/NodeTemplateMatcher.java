@@ -0,0 +1,215 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.openstreetmap.josm.data.osm.KeyValueVisitor;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.Tagged;
+import org.openstreetmap.josm.data.osm.Way;
+
+/**
+ * Immutable compiled form of the matching rules of a {@link NodeTemplate}.
+ * <p>
+ * Keys are interned and sorted with their values in parallel arrays, so a primitive
+ * is matched in a single pass over its tags without allocating anything.
+ */
+final class NodeTemplateMatcher {
+  static final int TYPE_NODE = 1;
+  static final int TYPE_WAY = 2;
+  static final int TYPE_CLOSED_WAY = 4;
+
+  private static final ThreadLocal<TagScan> SCAN = ThreadLocal.withInitial(TagScan::new);
+
+  private final int typeMask;
+  private final boolean onlyForUntaggedObjects;
+
+  private final String[] mapKeys;
+  private final String[] mapValues;
+  private final String[] ctrlKeys;
+  private final String[] ctrlValues;
+  private final String[] shiftKeys;
+  private final String[] shiftValues;
+
+  private final int sizeWithCtrl;
+  private final int sizeWithShift;
+
+  NodeTemplateMatcher(Map<String, String> map, Map<String, String> ctrl, Map<String, String> shift, boolean forNodes, boolean forWays, boolean forClosedWays, boolean onlyForUntaggedObjects) {
+    this.typeMask = (forNodes ? TYPE_NODE : 0) | (forWays ? TYPE_WAY : 0) | (forClosedWays ? TYPE_CLOSED_WAY : 0);
+    this.onlyForUntaggedObjects = onlyForUntaggedObjects;
+
+    mapKeys = sortedKeys(map);
+    mapValues = valuesFor(mapKeys, map);
+    ctrlKeys = sortedKeys(ctrl);
+    ctrlValues = valuesFor(ctrlKeys, ctrl);
+    shiftKeys = sortedKeys(shift);
+    shiftValues = valuesFor(shiftKeys, shift);
+
+    sizeWithCtrl = mapKeys.length + ctrlKeys.length;
+    sizeWithShift = mapKeys.length + shiftKeys.length;
+  }
+
+  private static String[] sortedKeys(Map<String, String> map) {
+    if(map == null || map.isEmpty()) {
+      return new String[0];
+    }
+
+    ArrayList<String> keys = new ArrayList<>(map.size());
+    map.keySet().forEach(key -> keys.add(key.intern()));
+    keys.sort(null);
+
+    return keys.toArray(new String[0]);
+  }
+
+  private static String[] valuesFor(String[] keys, Map<String, String> map) {
+    String[] values = new String[keys.length];
+
+    for(int i = 0; i < keys.length; i++) {
+      values[i] = map.get(keys[i]);
+    }
+
+    return values;
+  }
+
+  /**
+   * Reports the tags of which a tagged primitive needs at least one to be
+   * compatible with a template that is only for untagged objects.
+   */
+  void forEachAnchorTag(BiConsumer<String, String> consumer) {
+    if(mapKeys.length > 0) {
+      consumer.accept(mapKeys[0], mapValues[0]);
+    }
+    else {
+      if(ctrlKeys.length > 0) {
+        consumer.accept(ctrlKeys[0], ctrlValues[0]);
+      }
+      if(shiftKeys.length > 0) {
+        consumer.accept(shiftKeys[0], shiftValues[0]);
+      }
+    }
+  }
+
+  static int typeOf(OsmPrimitive p) {
+    if(p instanceof Node) {
+      return TYPE_NODE;
+    }
+    else if(p instanceof Way) {
+      return ((Way)p).isClosed() ? TYPE_CLOSED_WAY : TYPE_WAY;
+    }
+
+    return 0;
+  }
+
+  int getTypeMask() {
+    return typeMask;
+  }
+
+  boolean isOnlyForUntaggedObjects() {
+    return onlyForUntaggedObjects;
+  }
+
+  boolean isCompatible(OsmPrimitive p) {
+    return (typeMask & typeOf(p)) != 0 && (!onlyForUntaggedObjects || onlyMatchingTags(p));
+  }
+
+  boolean onlyMatchingTags(OsmPrimitive p) {
+    final int numKeys = p.getNumKeys();
+
+    if(numKeys == 0) {
+      return true;
+    }
+    else if(numKeys != mapKeys.length && numKeys != sizeWithCtrl && numKeys != sizeWithShift) {
+      return false;
+    }
+
+    final TagScan scan = SCAN.get();
+    scan.start(this);
+
+    try {
+      p.visitKeys(scan);
+
+      if(scan.mapHits != mapKeys.length) {
+        return false;
+      }
+      else if(numKeys == mapKeys.length) {
+        return true;
+      }
+
+      boolean hasCtrlTag = scan.ctrlHits > 0;
+      boolean ctrlComplete = scan.ctrlHits == ctrlKeys.length;
+      boolean hasShiftTag = scan.shiftHits > 0;
+      boolean shiftComplete = scan.shiftHits == shiftKeys.length;
+
+      return (!hasShiftTag && hasCtrlTag && ctrlComplete && numKeys == sizeWithCtrl) ||
+          (!hasCtrlTag && hasShiftTag && shiftComplete && numKeys == sizeWithShift);
+    } finally {
+      scan.matcher = null;
+    }
+  }
+
+  private static int indexOf(String[] keys, String key) {
+    int low = 0;
+    int high = keys.length - 1;
+
+    while(low <= high) {
+      int mid = (low + high) >>> 1;
+
+      if(keys[mid] == key) {
+        return mid;
+      }
+
+      int cmp = keys[mid].compareTo(key);
+
+      if(cmp < 0) {
+        low = mid + 1;
+      }
+      else if(cmp > 0) {
+        high = mid - 1;
+      }
+      else {
+        return mid;
+      }
+    }
+
+    return -1;
+  }
+
+  private static boolean hasTag(String[] keys, String[] values, String key, String value) {
+    int index = keys.length == 0 ? -1 : indexOf(keys, key);
+
+    return index >= 0 && value.equals(values[index]);
+  }
+
+  /**
+   * Reusable per thread state of a single pass over the tags of a primitive.
+   */
+  private static final class TagScan implements KeyValueVisitor {
+    private NodeTemplateMatcher matcher;
+    private int mapHits;
+    private int ctrlHits;
+    private int shiftHits;
+
+    private void start(NodeTemplateMatcher matcher) {
+      this.matcher = matcher;
+      mapHits = 0;
+      ctrlHits = 0;
+      shiftHits = 0;
+    }
+
+    @Override
+    public void visitKeyValue(Tagged primitive, String key, String value) {
+      if(hasTag(matcher.mapKeys, matcher.mapValues, key, value)) {
+        mapHits++;
+      }
+      if(hasTag(matcher.ctrlKeys, matcher.ctrlValues, key, value)) {
+        ctrlHits++;
+      }
+      if(hasTag(matcher.shiftKeys, matcher.shiftValues, key, value)) {
+        shiftHits++;
+      }
+    }
+  }
+}
@@ -0,0 +1,213 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.ImageIcon;
+
+import org.openstreetmap.josm.gui.tagging.presets.TaggingPresetReader;
+import org.openstreetmap.josm.gui.tagging.presets.TaggingPresets;
+import org.openstreetmap.josm.gui.util.GuiSizesHelper;
+import org.openstreetmap.josm.tools.ImageProvider;
+import org.openstreetmap.josm.tools.ImageProvider.ImageSizes;
+import org.openstreetmap.josm.tools.ImageResource;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Loads the preset icons of the node templates on a small pool of background threads.
+ * <p>
+ * Concurrent requests for the same icon and size share one future. Icons requested for
+ * visible rows are loaded before the others, otherwise in the order of the requests.
+ * <p>
+ * Loaded icons are kept in a size bounded cache keyed by name, size and pixel density,
+ * so templates with the same preset icon share one image. Rendered icons are also
+ * stored on disk by {@link TemplateIconStore}, icons found there are returned at once.
+ */
+final class TemplateIconLoader {
+  static final int PRIORITY_BACKGROUND = 0;
+  static final int PRIORITY_VISIBLE = 1;
+  
+  private static final int THREADS = 2;
+  private static final int KEEP_ALIVE_SECONDS = 10;
+  private static final int MAX_CACHED_ICONS = 512;
+  
+  private static TemplateIconLoader instance;
+  
+  private final Map<String, Task> pending = new HashMap<>();
+  private final Map<String, ImageIcon> cache = new LinkedHashMap<String, ImageIcon>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ImageIcon> eldest) {
+      return size() > MAX_CACHED_ICONS;
+    }
+  };
+  private final TemplateIconStore store = new TemplateIconStore();
+  private ImageIcon nodeBadge;
+  private final ThreadPoolExecutor executor;
+  private long sequence;
+  
+  private TemplateIconLoader() {
+    instance = this;
+    executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<>(),
+        Utils.newThreadFactory("extendedclipboard-icon-loader-%d", Thread.NORM_PRIORITY));
+    executor.allowCoreThreadTimeOut(true);
+  }
+  
+  static synchronized void initialize() {
+    if(instance == null) {
+      new TemplateIconLoader();
+    }
+  }
+  
+  static synchronized TemplateIconLoader get() {
+    if(instance == null) {
+      initialize();
+    }
+    
+    return instance;
+  }
+  
+  /**
+   * Requests the icon with the given name and size, a pending request is moved ahead
+   * if the priority is higher now.
+   *
+   * @return the future icon, completed with <code>null</code> if there is no such icon
+   */
+  synchronized CompletableFuture<ImageIcon> load(String iconName, ImageSizes size, int priority) {
+    final String key = size.name() + '@' + GuiSizesHelper.getPixelDensity() + ':' + iconName;
+    
+    if(cache.containsKey(key)) {
+      return CompletableFuture.completedFuture(cache.get(key));
+    }
+    
+    final ImageIcon stored = store.get(key);
+    
+    if(stored != null) {
+      cache.put(key, stored);
+      return CompletableFuture.completedFuture(stored);
+    }
+    
+    Task task = pending.get(key);
+    
+    if(task == null) {
+      task = new Task(key, iconName, size, priority, sequence++);
+      pending.put(key, task);
+      executor.execute(task);
+    }
+    else if(task.priority < priority && executor.remove(task)) {
+      task.priority = priority;
+      executor.execute(task);
+    }
+    
+    return task.future;
+  }
+  
+  /**
+   * @return whether no other icons are pending
+   */
+  private synchronized boolean done(Task task, ImageIcon icon) {
+    cache.put(task.key, icon);
+    pending.remove(task.key);
+    
+    return pending.isEmpty();
+  }
+  
+  private synchronized ImageIcon getNodeBadge() {
+    if(nodeBadge == null) {
+      nodeBadge = ImageProvider.get("data/node", ImageSizes.SMALLICON);
+    }
+    
+    return nodeBadge;
+  }
+  
+  /**
+   * Loads the icon the same way as a tagging preset does.
+   */
+  private static ImageResource getResource(String iconName) {
+    return new ImageProvider(iconName).setDirs(TaggingPresets.ICON_SOURCES.get()).setId("presets")
+        .setArchive(TaggingPresetReader.getZipIcons()).setOptional(true).getResource();
+  }
+  
+  /**
+   * Renders the icon centered in the adjusted size. Large icons are used in the toolbar
+   * and marked with a node.
+   */
+  private ImageIcon createIcon(String iconName, ImageSizes size) {
+    final ImageResource resource = getResource(iconName);
+    final ImageIcon i = resource != null ? resource.getImageIcon(size.getImageDimension()) : null;
+    
+    if(i == null) {
+      return null;
+    }
+    
+    final BufferedImage image = new BufferedImage(size.getAdjustedWidth(), size.getAdjustedHeight(), BufferedImage.TYPE_INT_ARGB);
+    final Graphics2D g = image.createGraphics();
+    
+    i.paintIcon(null, g, image.getWidth()/2 - i.getIconWidth()/2, image.getHeight()/2 - i.getIconHeight()/2);
+    
+    if(size == ImageSizes.LARGEICON) {
+      final ImageIcon node = getNodeBadge();
+      node.paintIcon(null, g, image.getWidth() - node.getIconWidth()*3/4, image.getHeight() - node.getIconHeight()*3/4);
+    }
+    
+    g.dispose();
+    
+    return new ImageIcon(image);
+  }
+  
+  private final class Task implements Runnable, Comparable<Task> {
+    private final String key;
+    private final String iconName;
+    private final ImageSizes size;
+    private final long order;
+    private final CompletableFuture<ImageIcon> future = new CompletableFuture<>();
+    private volatile int priority;
+    
+    Task(String key, String iconName, ImageSizes size, int priority, long order) {
+      this.key = key;
+      this.iconName = iconName;
+      this.size = size;
+      this.priority = priority;
+      this.order = order;
+    }
+    
+    @Override
+    public void run() {
+      ImageIcon icon = null;
+      
+      try {
+        icon = createIcon(iconName, size);
+      } catch (RuntimeException e) {
+        Logging.warn(e);
+      }
+      
+      if(icon != null) {
+        store.put(key, icon);
+      }
+      
+      final boolean idle = done(this, icon);
+      future.complete(icon);
+      
+      if(idle) {
+        store.save();
+      }
+    }
+    
+    @Override
+    public int compareTo(Task other) {
+      if(priority != other.priority) {
+        return Integer.compare(other.priority, priority);
+      }
+      
+      return Long.compare(order, other.order);
+    }
+  }
+}
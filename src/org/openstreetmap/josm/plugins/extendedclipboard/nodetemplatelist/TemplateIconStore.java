@@ -0,0 +1,177 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+import org.openstreetmap.josm.data.Version;
+import org.openstreetmap.josm.gui.util.GuiSizesHelper;
+import org.openstreetmap.josm.plugins.extendedclipboard.ExtendedClipboardPlugin;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Rendered template icons stored as PNG images in one file in the cache directory of the
+ * plugin, so the SVG files of the presets are only rendered once.
+ * <p>
+ * There is one file per JOSM version and pixel density. Layout: magic, version, number of
+ * icons and per icon its key and the PNG image. The file is read at once and an image is
+ * only decoded when it is requested.
+ */
+final class TemplateIconStore {
+  private static final int MAGIC = 0x4E544943;
+  private static final int VERSION = 1;
+  private static final String DIRECTORY = "icons";
+  private static final String EXTENSION = ".eci";
+  
+  private final File file;
+  private final Map<String, ByteBuffer> images = new HashMap<>();
+  private boolean modified;
+  
+  TemplateIconStore() {
+    file = getFile();
+    read();
+  }
+  
+  private static File getFile() {
+    final ExtendedClipboardPlugin plugin = ExtendedClipboardPlugin.getInstance();
+    final File dir = plugin != null ? plugin.getPluginDirs().getCacheDirectory(false) : null;
+    
+    if(dir == null) {
+      return null;
+    }
+    
+    return new File(new File(dir, DIRECTORY), "templates-" + Version.getInstance().getVersion() + "-" + GuiSizesHelper.getPixelDensity() + EXTENSION);
+  }
+  
+  private void read() {
+    if(file == null || !file.isFile()) {
+      return;
+    }
+    
+    try {
+      final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+      
+      if(buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+        return;
+      }
+      
+      final int count = buffer.getInt();
+      
+      for(int i = 0; i < count; i++) {
+        final byte[] key = new byte[buffer.getInt()];
+        buffer.get(key);
+        
+        final int length = buffer.getInt();
+        final ByteBuffer image = buffer.slice();
+        image.limit(length);
+        buffer.position(buffer.position() + length);
+        
+        images.put(new String(key, StandardCharsets.UTF_8), image);
+      }
+    } catch (IOException | RuntimeException e) {
+      Logging.warn("Could not read cached template icons from " + file + ": " + e);
+      images.clear();
+    }
+  }
+  
+  /**
+   * @return the stored icon or <code>null</code> if it isn't stored
+   */
+  synchronized ImageIcon get(String key) {
+    final ByteBuffer image = images.get(key);
+    
+    if(image != null) {
+      try {
+        final BufferedImage result = ImageIO.read(new ByteArrayInputStream(image.array(), image.arrayOffset(), image.limit()));
+        
+        if(result != null) {
+          return new ImageIcon(result);
+        }
+      } catch (IOException e) {
+        Logging.warn("Could not decode cached template icon " + key + ": " + e);
+      }
+      
+      images.remove(key);
+    }
+    
+    return null;
+  }
+  
+  synchronized void put(String key, ImageIcon icon) {
+    if(file == null || !(icon.getImage() instanceof RenderedImage)) {
+      return;
+    }
+    
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ImageIO.write((RenderedImage)icon.getImage(), "png", bytes);
+      images.put(key, ByteBuffer.wrap(bytes.toByteArray()));
+      modified = true;
+    } catch (IOException e) {
+      Logging.warn("Could not encode template icon " + key + ": " + e);
+    }
+  }
+  
+  /**
+   * Writes the icons if new ones were added, files of other JOSM versions or pixel
+   * densities are removed.
+   */
+  synchronized void save() {
+    if(!modified) {
+      return;
+    }
+    
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final DataOutputStream out = new DataOutputStream(bytes);
+      
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeInt(images.size());
+      
+      for(Map.Entry<String, ByteBuffer> entry : images.entrySet()) {
+        final byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        final ByteBuffer image = entry.getValue();
+        
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeInt(image.limit());
+        out.write(image.array(), image.arrayOffset(), image.limit());
+      }
+      
+      out.flush();
+      
+      final File dir = file.getParentFile();
+      Files.createDirectories(dir.toPath());
+      
+      final File[] old = dir.listFiles((d, name) -> name.endsWith(EXTENSION) && !name.equals(file.getName()));
+      
+      if(old != null) {
+        for(File f : old) {
+          Files.deleteIfExists(f.toPath());
+        }
+      }
+      
+      final File tmp = new File(dir, file.getName() + ".tmp");
+      Files.write(tmp.toPath(), bytes.toByteArray());
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      modified = false;
+    } catch (IOException e) {
+      Logging.warn("Could not store template icons to " + file + ": " + e);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.extendedclipboard.nodetemplatelist;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import org.openstreetmap.josm.actions.mapmode.MapMode;
+import org.openstreetmap.josm.command.AddCommand;
+import org.openstreetmap.josm.command.Command;
+import org.openstreetmap.josm.command.SequenceCommand;
+import org.openstreetmap.josm.data.UndoRedoHandler;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Node;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.Notification;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.tools.ImageProvider;
+import org.openstreetmap.josm.tools.Shortcut;
+
+/**
+ * Map mode that adds a node of the template selected in the node template list at every
+ * click position.
+ * <p>
+ * Each node is added as its own command. Nodes placed shortly after each other with the
+ * same template are merged into one undo step once no further node follows in time. The
+ * tags are collected once per template and modifier combination, not per click.
+ */
+public class TemplateStampMapMode extends MapMode {
+  private static final int BATCH_WINDOW = 2000;
+  
+  private final Map<Integer, Map<String, String>> tags = new HashMap<>();
+  private NodeTemplate tagsTemplate;
+  private int tagsModificationCount;
+  
+  private final List<Command> batch = new ArrayList<>();
+  private final Timer batchTimer;
+  private DataSet batchDataSet;
+  private NodeTemplate batchTemplate;
+  
+  public TemplateStampMapMode() {
+    super(tr("Stamp node template"), "stampnodetemplate", tr("Add a node of the selected node template at each click"),
+        Shortcut.registerShortcut("mapmode:stampnodetemplate", tr("Mode: {0}", tr("Stamp node template")), KeyEvent.CHAR_UNDEFINED, Shortcut.NONE),
+        ImageProvider.getCursor("crosshair", null));
+    
+    batchTimer = new Timer(BATCH_WINDOW, e -> endBatch());
+    batchTimer.setRepeats(false);
+  }
+  
+  @Override
+  public void enterMode() {
+    super.enterMode();
+    MainApplication.getMap().mapView.addMouseListener(this);
+  }
+  
+  @Override
+  public void exitMode() {
+    super.exitMode();
+    MainApplication.getMap().mapView.removeMouseListener(this);
+    endBatch();
+    tagsTemplate = null;
+  }
+  
+  @Override
+  public boolean layerIsSupported(Layer l) {
+    return isEditableDataLayer(l);
+  }
+  
+  @Override
+  public void mouseReleased(MouseEvent e) {
+    if(!SwingUtilities.isLeftMouseButton(e) || !MainApplication.isDisplayingMapView()) {
+      return;
+    }
+    
+    final DataSet ds = MainApplication.getLayerManager().getEditDataSet();
+    final NodeTemplateListDialog dialog = NodeTemplateList.get().getDialog();
+    final NodeTemplate t = dialog != null ? dialog.getSelectedTemplate() : null;
+    
+    if(ds == null) {
+      return;
+    }
+    
+    if(t == null || t == NodeTemplateList.SEPARATOR || t.isNotForNodes()) {
+      new Notification(tr("Select a node template for nodes in the node template list first.")).setIcon(JOptionPane.INFORMATION_MESSAGE).show();
+      return;
+    }
+    
+    updateKeyModifiers(e);
+    
+    final Node node = new Node(MainApplication.getMap().mapView.getEastNorth(e.getX(), e.getY()));
+    node.setKeys(getTags(t, ctrl, shift));
+    
+    if(batchTemplate != t || batchDataSet != ds) {
+      endBatch();
+    }
+    
+    final AddCommand add = new AddCommand(ds, node);
+    UndoRedoHandler.getInstance().add(add);
+    
+    batch.add(add);
+    batchDataSet = ds;
+    batchTemplate = t;
+    batchTimer.restart();
+  }
+  
+  /**
+   * Replaces the commands of the batch by one if they are still the last ones on the undo
+   * stack, otherwise they are left as they are.
+   */
+  private void endBatch() {
+    batchTimer.stop();
+    
+    final UndoRedoHandler undoRedo = UndoRedoHandler.getInstance();
+    final int size = batch.size();
+    
+    if(size > 1 && isLastOnUndoStack(undoRedo.getUndoCommands())) {
+      undoRedo.undo(size);
+      undoRedo.add(new SequenceCommand(tr("Stamp node template {0}", batchTemplate), new ArrayList<>(batch)));
+    }
+    
+    batch.clear();
+    batchDataSet = null;
+    batchTemplate = null;
+  }
+  
+  private boolean isLastOnUndoStack(LinkedList<Command> undoCommands) {
+    final Iterator<Command> commands = undoCommands.descendingIterator();
+    
+    for(int i = batch.size() - 1; i >= 0; i--) {
+      if(!commands.hasNext() || commands.next() != batch.get(i)) {
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * @return the tags of new nodes, rebuilt only if the template or its tags changed
+   */
+  private Map<String, String> getTags(NodeTemplate t, boolean ctrl, boolean shift) {
+    if(t != tagsTemplate || NodeTemplate.getModificationCount() != tagsModificationCount) {
+      tags.clear();
+      tagsTemplate = t;
+      tagsModificationCount = NodeTemplate.getModificationCount();
+    }
+    
+    return tags.computeIfAbsent((ctrl ? 1 : 0) | (shift ? 2 : 0), k -> {
+      final Map<String, String> result = new LinkedHashMap<>(t.getMap());
+      
+      if(ctrl && !shift) {
+        result.putAll(t.getCtrl());
+      }
+      else if(!ctrl && shift) {
+        result.putAll(t.getShift());
+      }
+      
+      return result;
+    });
+  }
+}